@@ -0,0 +1,165 @@
+// Copyright David Petrie 2008
+//
+// Keeps track of which parts of a tile are still changing, so that the
+// parts that have settled down don't have to be stepped.
+//
+// The grid is split into blocks of 64 rows by one word (64 columns).
+// A cell's next state only depends on its own 3x3 neighbourhood, so if
+// neither a block nor any of the eight blocks around it changed last
+// generation, the block won't change this generation either. The grid
+// being written to is the one from two generations back, which for such
+// a block already holds the right cells, so it is simply left alone.
+//
+// Blocks within one cell of the halo ring (or the edge of the grid) are
+// always stepped, since the halo is filled from outside and can change
+// without the block map knowing.
+//
+// On several threads, the work is shared out in strips of STRIP_ROWS rows
+// by one word rather than in whole block rows, so that even a tile only a
+// block or two high is split over several threads. The strips are taken
+// in row order, a row of them across the tile at a time, and handed out
+// about four pieces to a thread (as the rows were before blocks were
+// tracked) so that the threads stay busy when only some blocks are
+// active, but never less than a block's worth of words to a piece, below
+// which forking the piece off costs about as much as stepping it. A
+// 512 x 512 tile is then split into about 80 pieces, enough for 32
+// threads. Working out the next state of a word doesn't depend on the
+// words stepped around it, so thinner strips cost nothing more per row.
+public class ActiveBlocks
+{
+	public static final int BLOCK_ROWS = 64;
+	public static final int STRIP_ROWS = 16;
+
+	private int blockRows = 0;
+	private int blockCols = 0;
+	private int bands = 0;	// rows of strips
+	private boolean[] changed = null;
+	private boolean[] nextChanged = null;
+	private boolean[] pinned = null;
+	private boolean[] stepped = null;
+	private boolean[] stripChanged = null;
+
+	// what the strips are stepped from and to, for "strips" below
+	private CellGrid in = null;
+	private CellGrid out = null;
+	private int fromRow = 0;
+	private int toRow = 0;
+
+	// Made once, so that stepping doesn't allocate anything.
+	private final ParallelStepper.Rows strips = new ParallelStepper.Rows() {
+		public void Run(int from, int to) {
+			StepStrips(from, to);
+		}
+	};
+
+
+
+	// gridRows and gridCols are the size of the whole grid, halo included.
+	// rows and cols are the size of the tile inside the halo.
+	public ActiveBlocks(int gridRows, int gridCols, int rows, int cols, int halo)
+	{
+		blockRows = (gridRows + BLOCK_ROWS - 1) / BLOCK_ROWS;
+		blockCols = Math.max(1, (gridCols + 63) >>> 6);
+		changed = new boolean[blockRows * blockCols];
+		nextChanged = new boolean[blockRows * blockCols];
+		pinned = new boolean[blockRows * blockCols];
+		stepped = new boolean[blockRows * blockCols];
+		bands = blockRows * (BLOCK_ROWS / STRIP_ROWS);
+		stripChanged = new boolean[bands * blockCols];
+		for (int br = 0; br < blockRows; br++)
+		{
+			for (int w = 0; w < blockCols; w++)
+			{
+				int r0 = br * BLOCK_ROWS - 1, r1 = (br + 1) * BLOCK_ROWS;
+				int c0 = (w << 6) - 1, c1 = (w + 1) << 6;
+				pinned[br * blockCols + w] = r0 < halo || r1 >= halo + rows || c0 < halo || c1 >= halo + cols;
+			}
+		}
+		MarkAll();
+	}
+
+
+
+	// Forgets what has settled down, so that every block is stepped next
+	// time. Called when cells are set from outside.
+	public void MarkAll()
+	{
+		java.util.Arrays.fill(changed, true);
+	}
+
+
+
+	// As CellGrid.NextState(in, out, fromRow, toRow), skipping the blocks
+	// that can't have changed. "stepper" may be null to step on the calling
+	// thread. Returns whether any cell changed.
+	public boolean Step(CellGrid in, CellGrid out, int fromRow, int toRow, ParallelStepper stepper)
+	{
+		for (int br = 0; br < blockRows; br++)
+		{
+			for (int w = 0; w < blockCols; w++)
+				stepped[br * blockCols + w] = pinned[br * blockCols + w] || NearChange(br, w);
+		}
+
+		this.in = in;
+		this.out = out;
+		this.fromRow = fromRow;
+		this.toRow = toRow;
+		int pieces = bands * blockCols;
+		if (stepper == null) strips.Run(0, pieces);
+		else stepper.ForEach(0, pieces, Math.max(BLOCK_ROWS / STRIP_ROWS, pieces / (stepper.GetParallelism() * 4)), strips);
+		this.in = null;
+		this.out = null;
+
+		boolean anyChanged = false;
+		for (int br = 0; br < blockRows; br++)
+		{
+			boolean outside = Math.max(fromRow, br * BLOCK_ROWS) >= Math.min(toRow, (br + 1) * BLOCK_ROWS);
+			for (int w = 0; w < blockCols; w++)
+			{
+				boolean c = outside;
+				for (int s = br * (BLOCK_ROWS / STRIP_ROWS); s < (br + 1) * (BLOCK_ROWS / STRIP_ROWS); s++)
+					c |= stripChanged[s * blockCols + w];
+				nextChanged[br * blockCols + w] = c;
+				anyChanged |= c;
+			}
+		}
+
+		boolean[] tmp = changed;
+		changed = nextChanged;
+		nextChanged = tmp;
+		return anyChanged;
+	}
+
+
+
+	// Steps strips "from" to "to" of "in" into "out", numbered a row of
+	// strips across the grid at a time, clipped to rows fromRow to toRow.
+	// Strips of blocks that can't have changed are skipped.
+	private void StepStrips(int from, int to)
+	{
+		for (int i = from; i < to; i++)
+		{
+			int s = i / blockCols;
+			int w = i - s * blockCols;
+			int r0 = Math.max(fromRow, s * STRIP_ROWS);
+			int r1 = Math.min(toRow, (s + 1) * STRIP_ROWS);
+			if (r0 >= r1 || !stepped[(s * STRIP_ROWS / BLOCK_ROWS) * blockCols + w]) stripChanged[i] = false;
+			else stripChanged[i] = CellGrid.NextState(in, out, r0, r1, w, w + 1);
+		}
+	}
+
+
+
+	// Whether the block or any block around it changed last step.
+	private boolean NearChange(int br, int w)
+	{
+		for (int r = Math.max(0, br - 1); r <= Math.min(blockRows - 1, br + 1); r++)
+		{
+			for (int c = Math.max(0, w - 1); c <= Math.min(blockCols - 1, w + 1); c++)
+			{
+				if (changed[r * blockCols + c]) return true;
+			}
+		}
+		return false;
+	}
+}
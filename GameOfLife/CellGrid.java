@@ -0,0 +1,215 @@
+// Copyright David Petrie 2008
+//
+// Bit-packed matrix of cells.
+//
+// Each row is stored as a run of longs, one bit per cell, with column
+// c held in bit (c % 64) of word (c / 64). Bits past the last column
+// are always kept clear so that whole words can be compared and
+// counted directly.
+//
+// The next state kernel works on a word (64 cells) at a time, adding
+// up the eight neighbour bit planes with bitwise adder logic.
+public class CellGrid
+{
+	public final int rows;
+	public final int cols;
+	public final int wordsPerRow;
+	public final long[] words;
+	private final long lastWordMask;
+
+
+
+	public CellGrid(int rows, int cols)
+	{
+		this.rows = rows;
+		this.cols = cols;
+		this.wordsPerRow = Math.max(1, (cols + 63) >>> 6);
+		this.words = new long[rows * wordsPerRow];
+		if ((cols & 63) == 0) this.lastWordMask = (cols == 0) ? 0L : -1L;
+		else this.lastWordMask = (1L << (cols & 63)) - 1;
+	}
+
+
+
+	public boolean Get(int row, int col)
+	{
+		return ((words[row * wordsPerRow + (col >>> 6)] >>> (col & 63)) & 1L) != 0;
+	}
+
+
+
+	public void Set(int row, int col, boolean hasLife)
+	{
+		int i = row * wordsPerRow + (col >>> 6);
+		if (hasLife) words[i] |= (1L << (col & 63));
+		else words[i] &= ~(1L << (col & 63));
+	}
+
+
+
+	// Gets the 64 cells of a row starting at col as a word, with col in the
+	// lowest bit. Cells past the end of the row come back dead.
+	public long GetWord(int row, int col)
+	{
+		int i = row * wordsPerRow + (col >>> 6);
+		int shift = col & 63;
+		long w = words[i] >>> shift;
+		if (shift != 0 && (col >>> 6) + 1 < wordsPerRow) w |= words[i + 1] << (64 - shift);
+		return w;
+	}
+
+
+
+	// Sets "count" (at most 64) cells of a row, starting at col, from the
+	// low bits of a word.
+	public void SetWord(int row, int col, long bits, int count)
+	{
+		long mask = (count >= 64) ? -1L : (1L << count) - 1;
+		bits &= mask;
+		int i = row * wordsPerRow + (col >>> 6);
+		int shift = col & 63;
+		words[i] = (words[i] & ~(mask << shift)) | (bits << shift);
+		if (shift != 0 && count > 64 - shift) {
+			words[i + 1] = (words[i + 1] & ~(mask >>> (64 - shift))) | (bits >>> (64 - shift));
+		}
+	}
+
+
+
+	public void Clear()
+	{
+		java.util.Arrays.fill(words, 0L);
+	}
+
+
+
+	public CellGrid Copy()
+	{
+		CellGrid g = new CellGrid(rows, cols);
+		System.arraycopy(words, 0, g.words, 0, words.length);
+		return g;
+	}
+
+
+
+	// Copies a rows x cols block of cells from src (starting at srcRow/srcCol)
+	// into this grid (starting at dstRow/dstCol).
+	public void CopyRegion(CellGrid src, int srcRow, int srcCol, int dstRow, int dstCol, int rows, int cols)
+	{
+		for (int r = 0; r < rows; r++)
+		{
+			for (int c = 0; c < cols; c++)
+				Set(dstRow + r, dstCol + c, src.Get(srcRow + r, srcCol + c));
+		}
+	}
+
+
+
+	// Number of live cells in the grid.
+	public int CountLiveCells()
+	{
+		int count = 0;
+		for (long w: words) count += Long.bitCount(w);
+		return count;
+	}
+
+
+
+	public boolean equals(CellGrid g)
+	{
+		return (g.rows == rows) && (g.cols == cols) && java.util.Arrays.equals(g.words, words);
+	}
+
+
+
+	// Finds the next state of every cell in "in" and writes it to "out", which
+	// must have the same dimensions. Cells outside the grid count as dead.
+	public static void NextState(CellGrid in, CellGrid out)
+	{
+		NextState(in, out, 0, in.rows);
+	}
+
+
+
+	// As above, but only rows fromRow (inclusive) to toRow (exclusive) of
+	// "out" are written.
+	public static void NextState(CellGrid in, CellGrid out, int fromRow, int toRow)
+	{
+		NextState(in, out, fromRow, toRow, 0, in.wordsPerRow);
+	}
+
+
+
+	// As above, but only words fromWord (inclusive) to toWord (exclusive) of
+	// each row are written. Returns whether any of the cells written differ
+	// from the same cells in "in".
+	public static boolean NextState(CellGrid in, CellGrid out, int fromRow, int toRow, int fromWord, int toWord)
+	{
+		final int wpr = in.wordsPerRow;
+		final long[] src = in.words;
+		final long[] dst = out.words;
+		long changed = 0L;
+
+		for (int row = fromRow; row < toRow; row++)
+		{
+			int above = (row - 1) * wpr;
+			int here = row * wpr;
+			int below = (row + 1) * wpr;
+			boolean hasAbove = row > 0;
+			boolean hasBelow = row < in.rows - 1;
+
+			for (int w = fromWord; w < toWord; w++)
+			{
+				long a = hasAbove ? src[above + w] : 0L;
+				long c = src[here + w];
+				long b = hasBelow ? src[below + w] : 0L;
+
+				// carries from the neighbouring words on either side
+				long aPrev = 0L, cPrev = 0L, bPrev = 0L;
+				long aNext = 0L, cNext = 0L, bNext = 0L;
+				if (w > 0) {
+					aPrev = hasAbove ? src[above + w - 1] : 0L;
+					cPrev = src[here + w - 1];
+					bPrev = hasBelow ? src[below + w - 1] : 0L;
+				}
+				if (w < wpr - 1) {
+					aNext = hasAbove ? src[above + w + 1] : 0L;
+					cNext = src[here + w + 1];
+					bNext = hasBelow ? src[below + w + 1] : 0L;
+				}
+
+				// neighbour to the west of each cell, then to the east.
+				long aw = (a << 1) | (aPrev >>> 63);
+				long ae = (a >>> 1) | (aNext << 63);
+				long cw = (c << 1) | (cPrev >>> 63);
+				long ce = (c >>> 1) | (cNext << 63);
+				long bw = (b << 1) | (bPrev >>> 63);
+				long be = (b >>> 1) | (bNext << 63);
+
+				// Add each row of three into a (twos, ones) pair...
+				long s1 = aw ^ a ^ ae;
+				long c1 = (aw & a) | (ae & (aw ^ a));
+				long s2 = bw ^ b ^ be;
+				long c2 = (bw & b) | (be & (bw ^ b));
+				long s3 = cw ^ ce;
+				long c3 = cw & ce;
+
+				// ...then the ones columns together.
+				long ones = s1 ^ s2 ^ s3;
+				long c4 = (s1 & s2) | (s3 & (s1 ^ s2));
+
+				// Live next generation when the neighbour count is 3, or 2 with
+				// the cell already alive: i.e. exactly one "twos" bit set.
+				long p = c1 ^ c2;
+				long q = c3 ^ c4;
+				long exactlyOneTwo = (p ^ q) & ~((c1 & c2) | (c3 & c4));
+
+				long next = exactlyOneTwo & (ones | c);
+				if (w == wpr - 1) next &= in.lastWordMask;
+				dst[here + w] = next;
+				changed |= next ^ c;
+			}
+		}
+		return changed != 0L;
+	}
+}
@@ -0,0 +1,171 @@
+// Copyright David Petrie 2008
+//
+// A checkpoint of a run: the whole game space at one generation, with
+// where it is, and how it was split between the workers, so that the run
+// can be picked up again from there (see Master.SaveCheckpoint and
+// -Dgol.resume).
+//
+// The master has every worker's cells at the same generation after each
+// step or report, so a checkpoint taken from its copy is always consistent
+// across the tiles, and no worker has to stop to write one.
+//
+// On disk (big endian):
+//
+//   int      magic ("GOLC") and VERSION
+//   int      generation
+//   int      space row, col, rows, cols, and its smallest rows, cols
+//   byte     1 if the space is unbounded
+//   int      number of tiles, 0 if there's no partition, then
+//   byte     1 if the bands are columns
+//   int      number of bands, then the number of tiles in each
+//   int[4]   row, col, rows, cols of each tile
+//   int      number of 64 x 64 chunks with live cells, then for each
+//   int      row, col of its top left cell
+//   long[64] its rows
+//   long     CRC32 of everything before it
+//
+// It is written to a temporary file which is then renamed over the last
+// checkpoint, so the file at the checkpoint path is always a whole one.
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.*;
+
+public class Checkpoint
+{
+	public static final int MAGIC = 0x474f4c43;
+	public static final int VERSION = 1;
+
+	public int generation = 0;
+	public int spaceRow = 0;
+	public int spaceCol = 0;
+	public int minRows = 0;
+	public int minCols = 0;
+	public boolean unbounded = false;
+	public Partition partition = null;
+	public SparseGrid cells = null;
+
+
+
+	public Checkpoint(int generation, SparseGrid cells)
+	{
+		this.generation = generation;
+		this.cells = cells;
+	}
+
+
+
+	// Writes the checkpoint to path, replacing any checkpoint already there
+	// only once the new one is safely on disk.
+	public void Write(String path) throws IOException
+	{
+		ArrayList<int[]> chunks = cells.GetChunks();
+		int tiles = (partition == null) ? 0 : partition.GetSize();
+		int bands = (partition == null) ? 0 : partition.GetCounts().length;
+		int size = 4 * 9 + 1 + 4 + ((tiles == 0) ? 0 : 1 + 4 + 4 * bands + 16 * tiles)
+			+ 4 + chunks.size() * (8 + 8 * SparseGrid.CHUNK) + 8;
+
+		ByteBuffer b = ByteBuffer.allocate(size);
+		b.putInt(MAGIC).putInt(VERSION).putInt(generation);
+		b.putInt(spaceRow).putInt(spaceCol).putInt(cells.rows).putInt(cells.cols);
+		b.putInt(minRows).putInt(minCols);
+		b.put((byte)(unbounded ? 1 : 0));
+		b.putInt(tiles);
+		if (tiles > 0) {
+			b.put((byte)(partition.IsVertical() ? 1 : 0));
+			b.putInt(bands);
+			for (int c: partition.GetCounts()) b.putInt(c);
+			for (int id = 0; id < tiles; id++)
+			{
+				for (int v: partition.GetTile(id)) b.putInt(v);
+			}
+		}
+		b.putInt(chunks.size());
+		for (int[] chunk: chunks)
+		{
+			b.putInt(chunk[0]).putInt(chunk[1]);
+			for (long w: cells.GetChunk(chunk[0], chunk[1])) b.putLong(w);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(b.array(), 0, b.position());
+		b.putLong(crc.getValue());
+		b.flip();
+
+		Path target = Paths.get(path);
+		Path temp = Paths.get(path + ".tmp");
+		FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			while (b.hasRemaining()) channel.write(b);
+			channel.force(false);
+		} finally {
+			channel.close();
+		}
+		try {
+			Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+
+
+	// Reads a checkpoint written by Write, mapping the file rather than
+	// copying it in.
+	public static Checkpoint Read(String path) throws IOException
+	{
+		FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+		try {
+			if (channel.size() < 8 || channel.size() > Integer.MAX_VALUE) throw new IOException("Bad checkpoint size: " + path);
+			MappedByteBuffer b = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			int end = (int)channel.size() - 8;
+			CRC32 crc = new CRC32();
+			ByteBuffer body = b.duplicate();
+			body.limit(end);
+			crc.update(body);
+			if (crc.getValue() != b.getLong(end)) throw new IOException("Checkpoint is corrupt: " + path);
+
+			if (b.getInt() != MAGIC) throw new IOException("Not a checkpoint: " + path);
+			int version = b.getInt();
+			if (version != VERSION) throw new IOException("Unknown checkpoint version " + version + ": " + path);
+			int generation = b.getInt();
+			int spaceRow = b.getInt();
+			int spaceCol = b.getInt();
+			int rows = b.getInt();
+			int cols = b.getInt();
+			Checkpoint c = new Checkpoint(generation, new SparseGrid(rows, cols));
+			c.spaceRow = spaceRow;
+			c.spaceCol = spaceCol;
+			c.minRows = b.getInt();
+			c.minCols = b.getInt();
+			c.unbounded = b.get() != 0;
+			int tiles = b.getInt();
+			if (tiles > 0) {
+				boolean vertical = b.get() != 0;
+				int[] counts = new int[b.getInt()];
+				for (int i = 0; i < counts.length; i++) counts[i] = b.getInt();
+				int[][] t = new int[tiles][4];
+				for (int id = 0; id < tiles; id++)
+				{
+					for (int i = 0; i < 4; i++) t[id][i] = b.getInt();
+				}
+				c.partition = Partition.Restore(rows, cols, !c.unbounded, vertical, counts, t);
+			}
+			int chunks = b.getInt();
+			long[] words = new long[SparseGrid.CHUNK];
+			for (int i = 0; i < chunks; i++)
+			{
+				int row = b.getInt();
+				int col = b.getInt();
+				for (int r = 0; r < SparseGrid.CHUNK; r++) words[r] = b.getLong();
+				c.cells.SetChunk(row, col, words);
+			}
+			return c;
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Checkpoint is truncated: " + path);
+		} finally {
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,70 @@
+// Copyright David Petrie 2008
+//
+// Spots when the game space starts repeating itself, so the run can stop
+// early: a still life repeats every generation, a blinker every second,
+// a pulsar every third, and so on.
+//
+// Every worker keeps a 64 bit hash of its tile, updated as its cells
+// change (see GameOfLifeUtils.HashWord), and sends it with each report.
+// The master XORs them together into a hash of the whole space and gives
+// it to Add with the generation. If the same hash was added at an earlier
+// generation the space is taken to be the same as it was then, so it has
+// started to cycle. The hash of a cell doesn't depend on which tile it is
+// in, so the history carries on when the tiles are moved.
+//
+// Only the last "capacity" generations are kept.
+import java.util.*;
+
+public class CycleDetector
+{
+	private final int capacity;
+	private LinkedHashMap<Long, Integer> seen = null;
+	private int start = -1;
+	private int period = 0;
+
+
+
+	public CycleDetector(final int capacity)
+	{
+		this.capacity = capacity;
+		seen = new LinkedHashMap<Long, Integer>() {
+			protected boolean removeEldestEntry(Map.Entry<Long, Integer> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+
+
+	// Adds the hash of the space at a generation. Returns whether the space
+	// was the same at an earlier generation still in the history. A
+	// generation that is added again (after the workers have been wound
+	// back to it) replaces the one from before.
+	public boolean Add(int generation, long hash)
+	{
+		Integer earlier = seen.get(hash);
+		if (earlier != null && earlier < generation) {
+			start = earlier;
+			period = generation - earlier;
+			return true;
+		}
+		seen.put(hash, generation);
+		return false;
+	}
+
+
+
+	// The generation the cycle found by Add started at.
+	public int GetStart()
+	{
+		return start;
+	}
+
+
+
+	// How many generations the cycle found by Add takes to come round.
+	public int GetPeriod()
+	{
+		return period;
+	}
+}
@@ -20,4 +20,12 @@ public enum Direction {
 		this.cols = cols;
 		this.CSV = rows + ", " + cols;
 	}
+
+	// The direction pointing the other way.
+	public Direction Opposite() {
+		for (Direction d: Direction.values()) {
+			if (d.rows == -rows && d.cols == -cols) return d;
+		}
+		return null;
+	}
 }
@@ -0,0 +1,197 @@
+// Copyright David Petrie 2008
+//
+// Prints the master's frames - the game space after each generation - on
+// a thread of its own, so the workers don't wait on the console.
+//
+// The master hands each frame over with Submit, which copies the words of
+// the part of the space that is printed into a spare frame and queues it.
+// Frames are made once and passed back and forth, so nothing is allocated
+// per frame and the rest of the space is never copied. The renderer
+// thread lays the frame out in a buffer it keeps from frame to frame,
+// then writes it with a single call, so a frame is never split by other
+// output.
+//
+// What it prints is set with -Dgol.render=<mode>:
+//
+//   all     every frame, in order (the default). The master is held up if
+//           it gets more than QUEUE frames ahead of the console.
+//   latest  only the newest frame: a frame still waiting when the next
+//           one comes is dropped, and its words overwritten in place
+//           with the new frame's. The master is never held up.
+//   off     nothing at all, for timing runs. Nothing is copied.
+import java.io.*;
+import java.util.concurrent.*;
+
+public class FrameRenderer extends Thread
+{
+	public static final int QUEUE = 4;
+
+	private final String mode;
+	private final PrintStream out;
+	private final ArrayBlockingQueue<Frame> frames;
+	private final ArrayBlockingQueue<Frame> spare;
+	private final byte[] lineEnd = System.getProperty("line.separator").getBytes();
+	private byte[] buffer = new byte[1 << 16];
+	private int skipped = 0;
+
+
+
+	// The words of rows x cols cells from row/col of the space, a row at a
+	// time, with the first cell of each word in its lowest bit.
+	private static class Frame
+	{
+		int generation;
+		int row;
+		int col;
+		int rows;
+		int cols;
+		boolean showSpace;
+		long[] words = new long[0];
+		boolean last = false;
+	}
+
+
+
+	public FrameRenderer(String mode, PrintStream out) throws IOException
+	{
+		if (!mode.equals("all") && !mode.equals("latest") && !mode.equals("off"))
+			throw new IOException("Unknown render mode: " + mode);
+		this.mode = mode;
+		this.out = out;
+		int queue = mode.equals("latest") ? 1 : QUEUE;
+		this.frames = new ArrayBlockingQueue<>(queue);
+		this.spare = new ArrayBlockingQueue<>(queue + 1);
+		for (int i = 0; i <= queue; i++) spare.add(new Frame());
+		setDaemon(true);
+		if (!mode.equals("off")) start();
+	}
+
+
+
+	public boolean IsOff()
+	{
+		return mode.equals("off");
+	}
+
+
+
+	// Queues the rows x cols of cells starting at row/col to be printed as
+	// the frame for "generation", with where the space is if showSpace is
+	// set. The cells can be changed as soon as this returns.
+	public void Submit(int generation, SparseGrid cells, int row, int col, boolean showSpace) throws IOException
+	{
+		if (IsOff()) return;
+		try {
+			if (mode.equals("latest")) {
+				synchronized(frames) {
+					Frame f = frames.poll();
+					if (f != null) skipped++;
+					else f = spare.take();
+					Fill(f, generation, cells, row, col, showSpace);
+					frames.put(f);
+				}
+			} else {
+				Frame f = spare.take();
+				Fill(f, generation, cells, row, col, showSpace);
+				frames.put(f);
+			}
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted queueing a frame");
+		}
+	}
+
+
+
+	// Copies the words of the cells to be printed into a frame, growing its
+	// words if there are more than last time.
+	private void Fill(Frame f, int generation, SparseGrid cells, int row, int col, boolean showSpace)
+	{
+		f.generation = generation;
+		f.row = row;
+		f.col = col;
+		f.rows = cells.rows;
+		f.cols = cells.cols;
+		f.showSpace = showSpace;
+		int wordsPerRow = (f.cols + 63) >>> 6;
+		if (f.words.length < f.rows * wordsPerRow) f.words = new long[f.rows * wordsPerRow];
+		int i = 0;
+		for (int r = 0; r < f.rows; r++)
+		{
+			for (int c = 0; c < f.cols; c += 64)
+				f.words[i++] = cells.GetWord(row + r, col + c);
+		}
+	}
+
+
+
+	// Prints every frame still queued, and stops the thread.
+	public void Close() throws IOException
+	{
+		if (IsOff()) return;
+		try {
+			Frame last = new Frame();
+			last.last = true;
+			frames.put(last);
+			join();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted waiting for the last frames");
+		}
+		if (skipped > 0) System.err.println("Skipped " + skipped + " frames");
+	}
+
+
+
+	public void run()
+	{
+		try {
+			while (true) {
+				Frame f = frames.take();
+				if (f.last) return;
+				Render(f);
+				spare.put(f);
+			}
+		} catch (InterruptedException e) {}
+	}
+
+
+
+	// Lays the frame out in the buffer, growing it if it's too small, and
+	// writes it in one go.
+	private void Render(Frame f)
+	{
+		byte[] header = ("Cells at " + f.generation).getBytes();
+		byte[] space = f.showSpace ? ("Space at " + f.row + "," + f.col).getBytes() : new byte[0];
+		int size = header.length + space.length + (f.showSpace ? 2 : 1) * lineEnd.length
+			+ f.rows * (f.cols + lineEnd.length);
+		if (buffer.length < size) buffer = new byte[size];
+
+		int n = Put(header, 0);
+		n = Put(lineEnd, n);
+		if (f.showSpace) {
+			n = Put(space, n);
+			n = Put(lineEnd, n);
+		}
+		int w = 0;
+		for (int r = 0; r < f.rows; r++)
+		{
+			for (int c = 0; c < f.cols; c += 64)
+			{
+				long bits = f.words[w++];
+				int end = Math.min(64, f.cols - c);
+				for (int i = 0; i < end; i++)
+					buffer[n++] = ((bits >>> i) & 1L) != 0 ? (byte)'O' : (byte)' ';
+			}
+			n = Put(lineEnd, n);
+		}
+		out.write(buffer, 0, n);
+		out.flush();
+	}
+
+
+
+	private int Put(byte[] bytes, int n)
+	{
+		System.arraycopy(bytes, 0, buffer, n, bytes.length);
+		return n + bytes.length;
+	}
+}
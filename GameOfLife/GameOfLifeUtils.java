@@ -6,146 +6,213 @@
 // centralise them all.
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
 
 public class GameOfLifeUtils
 {
-	// From a matrix of cells, this function will find the next state of those
-	// cells. It needs to create a new array for this.
-	public static Cell[][] NextState(Cell[][] in) 
+	// How long (in seconds) to wait for other processes before giving up.
+	// Set with -Dgol.timeout=<seconds>.
+	public static final long TIMEOUT = Long.getLong("gol.timeout", 300);
+
+
+
+	// How often the master and workers send each other a heartbeat, in ms
+	// (-Dgol.heartbeat), and how long either waits without hearing
+	// anything from the other, heartbeats included, before giving it up for
+	// dead, in seconds (-Dgol.deadAfter).
+	public static final long HEARTBEAT = Long.getLong("gol.heartbeat", 1000);
+	public static final long DEAD_AFTER = Long.getLong("gol.deadAfter", 10);
+
+
+
+	// Whether the master and workers print how long the phases of each
+	// generation took when they finish (-Dgol.timing=true), as lines of
+	//
+	//   timing <phase> <histogram>
+	//
+	// (see Metrics and Histogram) for LoopbackBenchmark to pick up.
+	public static final boolean TIMING = Boolean.getBoolean("gol.timing");
+
+
+
+	// Blocks until the latch opens, or throws if that takes longer than
+	// TIMEOUT. "what" describes the wait for the error message.
+	public static void Await(CountDownLatch latch, String what) throws IOException
 	{
-		Cell[][] newCells = new Cell[in.length][in[0].length];
-		for (int row = 0; row < in.length; row++)
-		{
-			for (int col = 0; col < in[row].length; col++)
-			{
-				Cell c = in[row][col];
-				int n = GameOfLifeUtils.CountLiveCells(in,row,col);
-				if (c.hasLife) {
-					if (n <= 1 || n >= 4) newCells[row][col] = new Cell(c.row, c.col, false);
-					else newCells[row][col] = new Cell(c.row, c.col, c.hasLife);
-				} else {
-					if (n == 3) newCells[row][col] = new Cell(c.row, c.col, true);
-					else newCells[row][col] = new Cell(c.row, c.col, false);
-				}
-			}
+		try {
+			if (!latch.await(TIMEOUT, TimeUnit.SECONDS)) 
+				throw new IOException("Timed out waiting for " + what);
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted waiting for " + what);
 		}
+	}
+
+
+
+	// Takes "permits" permits from the semaphore, or throws if that takes
+	// longer than TIMEOUT.
+	public static void Await(Semaphore semaphore, int permits, String what) throws IOException
+	{
+		try {
+			if (!semaphore.tryAcquire(permits, TIMEOUT, TimeUnit.SECONDS)) 
+				throw new IOException("Timed out waiting for " + what);
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted waiting for " + what);
+		}
+	}
+
+
+
+	// From a matrix of cells, this function will find the next state of those
+	// cells. It needs to create a new grid for this.
+	public static CellGrid NextState(CellGrid in) 
+	{
+		CellGrid newCells = new CellGrid(in.rows, in.cols);
+		CellGrid.NextState(in, newCells);
 		return newCells;
 	}
 
 
 
 	// counts the number of cells that have life around a central cell at row/col
-	public static int CountLiveCells(Cell[][] cells, int row, int col)
+	public static int CountLiveCells(CellGrid cells, int row, int col)
+	{
+		// the (up to) three cells of each row around col, read as one word.
+		int from = Math.max(0, col - 1);
+		int to = Math.min(cells.cols - 1, col + 1);
+		long mask = (1L << (to - from + 1)) - 1;
+		int count = cells.Get(row, col) ? -1 : 0;
+		for (int r = Math.max(0, row - 1); r <= Math.min(cells.rows - 1, row + 1); r++)
+			count += Long.bitCount(cells.GetWord(r, from) & mask);
+		return count;
+	}
+
+
+
+	// Prints cells to stdout, all in one go.
+	public static void PrintCells(CellGrid cells)
 	{
-		int count = 0, r = 0, c = 0;
-		for (Direction d: Direction.values())
+		StringBuilder text = new StringBuilder(cells.rows * (cells.cols + 1));
+		String lineEnd = System.getProperty("line.separator");
+		for (int row = 0; row < cells.rows; row++)
 		{
-			r = row + d.rows;
-			c = col + d.cols;
-			if (!(r < 0 || r >= cells.length || c < 0 || c >= cells[0].length))
-			{
-				if (cells[r][c].hasLife) count++;
-			}
+			for (int col = 0; col < cells.cols; col++)
+				text.append(cells.Get(row, col) ? 'O' : ' ');
+			text.append(lineEnd);
 		}
-		return count;
+		System.out.print(text);
 	}
 
 
 
-	// Prints cells to stdout
-	public static void PrintCells(Cell[][] cells)
+	// Prints the live cells only to a buffer in CSV format, for a receiver
+	// that starts with every cell dead. Cell positions are offset by
+	// rowOffset/colOffset, so a worker is given its cells in the
+	// coordinates of the whole game space.
+	public static void PrintLiveCells(CellGrid cells, PrintWriter out, int rowOffset, int colOffset)
 	{
-		for (int row = 0; row < cells.length; row++)
+		for (int row = 0; row < cells.rows; row++)
 		{
-			for (int col = 0; col < cells[row].length; col++)
+			for (int col = 0; col < cells.cols; col++)
 			{
-				System.out.print(cells[row][col]);
+				if (cells.Get(row, col)) out.println(new Cell(row + rowOffset, col + colOffset, true).toCSV());
 			}
-			System.out.println();
 		}
 	}
 
 
 
-	// Prints cells to a buffer in CSV format.
-	public static void PrintCells(Cell[][] cells, PrintWriter out)
+	// Prints the cells of a tile (without its halo) to a buffer in CSV format.
+	public static void PrintCells(HaloTile cells, PrintWriter out, int rowOffset, int colOffset)
 	{
-		for (int row = 0; row < cells.length; row++)
+		for (int row = 0; row < cells.rows; row++)
 		{
-			for (int col = 0; col < cells[row].length; col++)
-				out.println(cells[row][col].toCSV());
+			for (int col = 0; col < cells.cols; col++)
+				out.println(new Cell(row + rowOffset, col + colOffset, cells.Get(row, col)).toCSV());
 		}
 	}
 
 
 
 	// compares two cell sets
-	public static boolean CompareCells(Cell[][] one, Cell[][] two)
+	public static boolean CompareCells(SparseGrid one, SparseGrid two)
 	{
-		boolean isIdentical = true;
-		for (int row = 0; row < one.length; row++)
-		{
-			for (int col = 0; col < one[row].length; col++) {
-				if (!one[row][col].equals(two[row][col])) isIdentical = false;
-			}
-		}
-		return isIdentical;
+		return one.equals(two);
 	}
 
 
 
+	// Hash of the live cells among the 64 of a row starting at col (col in
+	// the lowest bit), for a CycleDetector. Every cell of the space has a
+	// random looking 64 bit number, and the hash of a set of cells is the
+	// XOR of the numbers of its live cells. The hashes of tiles can
+	// therefore be XORed together wherever their edges are, and a hash can
+	// be kept up to date as cells change by XORing in HashWord(row, col,
+	// old ^ new), which only costs as much as the number of cells that
+	// changed.
+	public static long HashWord(long row, long col, long bits)
+	{
+		long hash = 0L;
+		long rowHash = Mix(row + 0x9e3779b97f4a7c15L);
+		while (bits != 0L) {
+			int bit = Long.numberOfTrailingZeros(bits);
+			hash ^= Mix(rowHash ^ (col + bit));
+			bits &= bits - 1;
+		}
+		return hash;
+	}
 
-	// Loads a cell set from file. 
-	//
-	// This code is fairly ugly but it's not core to the app so I'm not going to
-	// spend any additional time making it prettier.	
-	public static Cell[][] LoadPattern(String filename) {
-		Cell[][] cells = new Cell[0][0];
-		try {
-			File file = new File(filename);
-			int rows = GetLineCount(file);
-			System.out.println("Lines in file \"" + filename + "\": " + rows);
-
-			BufferedReader rdr = new BufferedReader(new FileReader(file));
-			String line = rdr.readLine();
-			cells = new Cell[rows][line.length()];
-			int row = 0;
-			int col = 0;
-		
-			while(line != null) {
-				col = 0;
-				while (line.length() > 0) {
-					cells[row][col] = new Cell(row, col, line.substring(0,1));
-					line = line.substring(1);
-					col++;
-				}
-				row++;
-				line = rdr.readLine();
-			}
-			return cells;
-		} catch (Exception ex) { System.out.println(ex.toString()); }
-		return cells;
+
+
+	// Hash of a grid whose top left cell is at row/col in the space.
+	public static long HashCells(CellGrid cells, int row, int col)
+	{
+		long hash = 0L;
+		for (int r = 0; r < cells.rows; r++)
+		{
+			for (int w = 0; w < cells.wordsPerRow; w++)
+				hash ^= HashWord(row + r, col + (w << 6), cells.words[r * cells.wordsPerRow + w]);
+		}
+		return hash;
 	}
 
 
 
-	// Gets the row of the work in the worker pattern
-	public static int GetWorkerRow(int workers, int workerID)
-	{	
-		int cols = GetWorkerPatternCols(workers);
-		if (cols == 0) return 1;
-		return (int)Math.floor(workerID / cols);
+	// Hash of a whole game space.
+	public static long HashCells(SparseGrid cells)
+	{
+		long hash = 0L;
+		for (int[] chunk: cells.GetChunks())
+		{
+			long[] words = cells.GetChunk(chunk[0], chunk[1]);
+			for (int r = 0; r < SparseGrid.CHUNK; r++)
+				hash ^= HashWord(chunk[0] + r, chunk[1], words[r]);
+		}
+		return hash;
 	}
 
 
 
-	// Gets the column of the work in the worker pattern
-	public static int GetWorkerCol(int workers, int workerID)
+	// Scrambles the bits of a long (the SplitMix64 finaliser).
+	private static long Mix(long h)
 	{
-		int cols = GetWorkerPatternCols(workers);
-		if (cols == 0) return 1;
-		return workerID % cols;
+		h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+		h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+		return h ^ (h >>> 31);
+	}
+
+
+
+
+	// Loads a cell set from file (see PatternLoader for the formats).
+	public static CellGrid LoadPattern(String filename) {
+		try {
+			CellGrid cells = PatternLoader.Load(filename);
+			System.out.println("Pattern \"" + filename + "\": " + cells.rows + " x " + cells.cols);
+			return cells;
+		} catch (Exception ex) { System.out.println(ex.toString()); }
+		return new CellGrid(0, 0);
 	}
 
 
@@ -171,41 +238,28 @@ public class GameOfLifeUtils
 
 
 
-	// Take the initial pattern and shoves it into the middle of a space that can
-	// be evenly split up amongst workers.
-	public static Cell[][] GetGameOfLifeSpace(int workers, int workerWidth, Cell[][] initialPattern)
+	// Take the initial pattern and shoves it into the middle of a rows x cols
+	// space.
+	//
+	// The space is a SparseGrid, so only the parts of it with live cells take
+	// up any memory.
+	public static SparseGrid GetGameOfLifeSpace(int rows, int cols, CellGrid initialPattern)
 	{
-		int rows = Math.max(1, GetWorkerPatternRows(workers));
-		int cols = Math.max(1, GetWorkerPatternCols(workers));
-
-		int startRow = (int)(((double)rows/2.0)*workerWidth);
-		int startCol = (int)(((double)cols/2.0)*workerWidth);
+		int startRow = rows/2;
+		int startCol = cols/2;
 
-		startRow -= (initialPattern.length/2);
-		startCol -= (initialPattern[0].length/2);
+		startRow -= (initialPattern.rows/2);
+		startCol -= (initialPattern.cols/2);
 
 		startRow = Math.max(0, startRow);
 		startCol = Math.max(0, startCol);
 
-		Cell[][] gameSpace = new Cell[rows * workerWidth][cols * workerWidth];
-
-		for (int r = 0; r < rows*workerWidth; r++)
-		{
-			for (int c = 0; c < cols*workerWidth; c++)
-				gameSpace[r][c] = new Cell(r,c,false);
-		}
+		SparseGrid gameSpace = new SparseGrid(rows, cols);
 		
-		int endRow = Math.min((startRow + initialPattern.length), gameSpace.length);
-		int endCol = Math.min((startCol + initialPattern[0].length), gameSpace[0].length);
+		int endRow = Math.min((startRow + initialPattern.rows), gameSpace.rows);
+		int endCol = Math.min((startCol + initialPattern.cols), gameSpace.cols);
 
-		for (int r = startRow; r < endRow; r++)
-		{
-			for (int c = startCol; c < endCol; c++)
-			{
-				Cell cell = initialPattern[r-startRow][c-startCol];
-				gameSpace[r][c] = new Cell(r, c, cell.hasLife);
-			}
-		}
+		gameSpace.CopyRegion(initialPattern, 0, 0, startRow, startCol, endRow - startRow, endCol - startCol);
 
 		return gameSpace;
 	}
@@ -229,29 +283,4 @@ public class GameOfLifeUtils
 		}
 		return l;
 	}
-
-
-
-	// Gets number of lines in a file.
-	//
-	// Adapted from a function here:
-	// http://forum.java.sun.com/thread.jspa?threadID=474733&forumID=31
-	public static int GetLineCount(File file) {
-		int lineCount = 0;
-		try {
-			Reader reader = new InputStreamReader(new FileInputStream(file));
-		        char[] buffer = new char[4096];
-	        	for (int charsRead = reader.read(buffer); charsRead >= 0; charsRead = reader.read(buffer))
-        		{
-				for (int charIndex = 0; charIndex < charsRead ; charIndex++)
-				{
-					if (buffer[charIndex] == '\n')
-					lineCount++;
-				}
-        		}
-		        reader.close();
-
-		} catch (Exception ex) { System.out.println(ex.toString()); }
-        	return lineCount;
-	}
 }
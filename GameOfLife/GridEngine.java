@@ -0,0 +1,111 @@
+// Copyright David Petrie 2008
+//
+// Steps a fixed size game space one generation at a time with the
+// bit-packed kernel.
+//
+// The space wraps around at its edges, like the space shared out among
+// the workers: before each step the halo ring on each side is filled
+// from the cells on the opposite side.
+public class GridEngine implements LifeEngine
+{
+	private HaloTile cells = null;
+	private int[][] edges = new int[Direction.values().length][];
+	private int[][] halos = new int[Direction.values().length][];
+	private long[][] bits = new long[Direction.values().length][];
+	private long generation = 0;
+
+
+
+	public GridEngine(int rows, int cols)
+	{
+		cells = new HaloTile(rows, cols, 1);
+		for (Direction d: Direction.values())
+		{
+			edges[d.ordinal()] = cells.Region(d.Opposite(), false);
+			halos[d.ordinal()] = cells.Region(d, true);
+			bits[d.ordinal()] = new long[(halos[d.ordinal()][2] * halos[d.ordinal()][3] + 63) >>> 6];
+		}
+	}
+
+
+
+	public void Load(CellGrid pattern, long row, long col)
+	{
+		for (int r = 0; r < pattern.rows; r++)
+		{
+			for (int c = 0; c < pattern.cols; c++)
+			{
+				if (pattern.Get(r, c)) cells.Set(Wrap(row + r, cells.rows), Wrap(col + c, cells.cols), true);
+			}
+		}
+	}
+
+
+
+	public void Step(long generations)
+	{
+		for (long i = 0; i < generations; i++)
+		{
+			for (Direction d: Direction.values())
+			{
+				cells.GetRegion(edges[d.ordinal()], bits[d.ordinal()]);
+				cells.SetRegion(halos[d.ordinal()], bits[d.ordinal()]);
+			}
+			cells.Step(0);
+			generation++;
+		}
+	}
+
+
+
+	public long GetGeneration()
+	{
+		return generation;
+	}
+
+
+
+	public long GetHash()
+	{
+		long hash = 0L;
+		for (int r = 0; r < cells.rows; r++)
+		{
+			for (int w = 0; w < (cells.cols + 63) >>> 6; w++)
+				hash ^= GameOfLifeUtils.HashWord(r, w << 6, cells.GetWord(r, w));
+		}
+		return hash;
+	}
+
+
+
+	public long GetPopulation()
+	{
+		long count = 0;
+		for (int r = 0; r < cells.rows; r++)
+		{
+			for (int w = 0; w < (cells.cols + 63) >>> 6; w++)
+				count += Long.bitCount(cells.GetWord(r, w));
+		}
+		return count;
+	}
+
+
+
+	public CellGrid Snapshot(long row, long col, int rows, int cols)
+	{
+		CellGrid g = new CellGrid(rows, cols);
+		for (int r = 0; r < rows; r++)
+		{
+			for (int c = 0; c < cols; c++)
+				g.Set(r, c, cells.Get(Wrap(row + r, cells.rows), Wrap(col + c, cells.cols)));
+		}
+		return g;
+	}
+
+
+
+	private static int Wrap(long i, int size)
+	{
+		return (int)(((i % size) + size) % size);
+	}
+}
@@ -0,0 +1,101 @@
+// Copyright David Petrie 2008
+//
+// A piece of boundary sent between workers in the binary halo protocol
+// (see HaloPiece).
+//
+// Workers agree on the protocol when a neighbour connection opens: the
+// connecting side sends "halo binary <version>" and the other side
+// answers "ok binary <version>", or "ok text" to fall back to the
+// original row,col,hasLife lines. A worker that sends "halo text" (or
+// no handshake at all) gets the text protocol.
+//
+// Once a worker has finished a generation it pushes a frame for each
+// piece of the other workers' halos that its tile covers:
+//
+//   int   piece id, i.e. where in the receiving worker's halo the cells
+//         belong
+//   int   generation
+//   int   length (number of cells)
+//   long  packed cells, one bit each, (length + 63) / 64 of them
+//
+// A length that is negative or more than MAX_LENGTH can only come from a
+// corrupt stream or something that isn't a worker, so it is rejected
+// before anything is allocated for it. The receiving worker checks the
+// length against the piece it expects when it uses the frame.
+import java.io.*;
+
+public class HaloFrame
+{
+	public static final int VERSION = 2;
+	public static final int MAX_LENGTH = 1 << 24;
+
+	public int piece = 0;
+	public int generation = 0;
+	public int length = 0;
+	public long[] bits = null;
+
+
+
+	public HaloFrame(int piece, int generation, int length)
+	{
+		this.piece = piece;
+		this.generation = generation;
+		this.length = length;
+		this.bits = new long[(length + 63) >>> 6];
+	}
+
+
+
+	public boolean Get(int i)
+	{
+		return ((bits[i >>> 6] >>> (i & 63)) & 1L) != 0;
+	}
+
+
+
+	public void Set(int i, boolean hasLife)
+	{
+		if (hasLife) bits[i >>> 6] |= (1L << (i & 63));
+		else bits[i >>> 6] &= ~(1L << (i & 63));
+	}
+
+
+
+	public void Write(DataOutputStream out) throws IOException
+	{
+		out.writeInt(piece);
+		out.writeInt(generation);
+		out.writeInt(length);
+		for (long w: bits) out.writeLong(w);
+	}
+
+
+
+	public static HaloFrame Read(DataInputStream in) throws IOException
+	{
+		int piece = in.readInt();
+		int generation = in.readInt();
+		int length = in.readInt();
+		if (length < 0 || length > MAX_LENGTH)
+			throw new IOException("Bad length " + length + " for boundary piece " + piece + " at generation " + generation);
+		HaloFrame f = new HaloFrame(piece, generation, length);
+		for (int i = 0; i < f.bits.length; i++) f.bits[i] = in.readLong();
+		return f;
+	}
+
+
+
+	// Reads a line of handshake text from a binary stream without reading
+	// ahead of the line ending. Returns null at end of stream.
+	public static String ReadLine(InputStream in) throws IOException
+	{
+		StringBuilder sb = new StringBuilder();
+		int b = in.read();
+		if (b < 0) return null;
+		while (b >= 0 && b != '\n') {
+			if (b != '\r') sb.append((char)b);
+			b = in.read();
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,101 @@
+// Copyright David Petrie 2008
+//
+// Holds boundaries pushed to a worker by its neighbours until the worker
+// is ready to use them.
+//
+// Boundaries are kept per generation, so a neighbour that has already
+// moved on to the next generation can push its boundary early without
+// overwriting the one the worker is still waiting on.
+//
+// When the worker recovers from another worker's failure (see
+// Worker.Recover) the mailbox is reset and its epoch moves on. Each
+// inbound connection notes the epoch it was opened in, and boundaries
+// from connections opened before the reset are dropped, so none can
+// turn up late and be mixed with the new tiles' boundaries.
+import java.io.*;
+import java.util.*;
+
+public class HaloMailbox
+{
+	private HashMap<Integer, HashMap<Integer, HaloFrame>> frames = new HashMap<>();
+	private int epoch = 0;
+	private boolean aborted = false;
+	private boolean closed = false;
+
+
+
+	// Files a boundary from a connection opened in "epoch" under its
+	// generation, and wakes up anyone waiting on it.
+	public synchronized void Put(HaloFrame f, int epoch)
+	{
+		if (epoch != this.epoch) return;
+		HashMap<Integer, HaloFrame> slots = frames.get(f.generation);
+		if (slots == null) {
+			slots = new HashMap<>();
+			frames.put(f.generation, slots);
+		}
+		if (slots.put(f.piece, f) != null) System.out.println("Duplicate boundary piece " + f.piece + " for generation " + f.generation);
+		notifyAll();
+	}
+
+
+
+	// Waits until "expected" boundaries have arrived for a generation, then
+	// removes and returns them, by piece id. Gives up after
+	// GameOfLifeUtils.TIMEOUT seconds, or as soon as the mailbox is aborted
+	// or closed.
+	public synchronized HashMap<Integer, HaloFrame> Take(int generation, int expected) throws IOException
+	{
+		long deadline = System.currentTimeMillis() + GameOfLifeUtils.TIMEOUT * 1000;
+		while (expected > 0 && (!frames.containsKey(generation) || frames.get(generation).size() < expected)) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (closed) throw new IOException("Lost the master waiting for neighbour boundaries");
+			if (aborted) throw new RecoveryException();
+			if (remaining <= 0) throw new IOException("Timed out waiting for neighbour boundaries for generation " + generation);
+			try {
+				wait(remaining);
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted waiting for neighbour boundaries");
+			}
+		}
+		HashMap<Integer, HaloFrame> slots = frames.remove(generation);
+		if (slots == null) slots = new HashMap<>();
+		return slots;
+	}
+
+
+
+	public synchronized int GetEpoch()
+	{
+		return epoch;
+	}
+
+
+
+	// Wakes up the worker if it's waiting on boundaries, which will never
+	// come now that a worker has failed.
+	public synchronized void Abort()
+	{
+		aborted = true;
+		notifyAll();
+	}
+
+
+
+	// As Abort, but for good: the master has gone.
+	public synchronized void Close()
+	{
+		closed = true;
+		notifyAll();
+	}
+
+
+
+	// Drops every boundary held, and any from connections opened before now.
+	public synchronized void Reset()
+	{
+		frames.clear();
+		epoch++;
+		aborted = false;
+	}
+}
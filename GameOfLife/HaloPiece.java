@@ -0,0 +1,81 @@
+// Copyright David Petrie 2008
+//
+// One piece of a worker's halo: a rectangle of another worker's tile
+// (or of its own, across the wrap) that lies inside the halo ring.
+//
+// Each generation the halo is refreshed the sending worker copies the
+// cells in "source" (in its own tile coordinates) into a HaloFrame
+// tagged with the piece's id, and the receiving worker copies them into
+// "target" (in its tile coordinates, so at least partly negative or past
+// the end of the tile). Pieces are worked out by the master (see
+// Partition.GetPieces) and sent to the workers as
+//
+//   <id> <row>,<col>,<rows>,<cols> <row>,<col>,<rows>,<cols>
+//
+// i.e. the id, then the source and target regions.
+import java.util.*;
+
+public class HaloPiece
+{
+	public final int id;
+	public final int from;
+	public final int to;
+	public final int[] source;
+	public final int[] target;
+
+
+
+	public HaloPiece(int id, int from, int to, int[] source, int[] target)
+	{
+		this.id = id;
+		this.from = from;
+		this.to = to;
+		this.source = source;
+		this.target = target;
+	}
+
+
+
+	// Number of cells in the piece.
+	public int GetLength()
+	{
+		return source[2] * source[3];
+	}
+
+
+
+	public String toString()
+	{
+		return id + " " + RegionString(source) + " " + RegionString(target);
+	}
+
+
+
+	// Reads a piece written by toString. The workers at either end aren't
+	// included, so come back as -1.
+	public static HaloPiece Parse(String s)
+	{
+		StringTokenizer st = new StringTokenizer(s, " ");
+		int id = Integer.parseInt(st.nextToken());
+		int[] source = ParseRegion(st.nextToken());
+		int[] target = ParseRegion(st.nextToken());
+		return new HaloPiece(id, -1, -1, source, target);
+	}
+
+
+
+	public static String RegionString(int[] region)
+	{
+		return region[0] + "," + region[1] + "," + region[2] + "," + region[3];
+	}
+
+
+
+	public static int[] ParseRegion(String s)
+	{
+		StringTokenizer st = new StringTokenizer(s, ",");
+		int[] region = new int[4];
+		for (int i = 0; i < 4; i++) region[i] = Integer.parseInt(st.nextToken().trim());
+		return region;
+	}
+}
@@ -0,0 +1,182 @@
+// Copyright David Petrie 2008
+//
+// A worker's tile of cells, surrounded by a ring of halo cells that
+// hold copies of the neighbouring workers' boundaries.
+//
+// Two grids (each including the halo ring) are allocated up front. A
+// step reads one and writes the other, then the two are swapped, so
+// stepping a generation on the calling thread does not allocate
+// anything.
+//
+// Rows and columns are given in tile coordinates: 0,0 is the top left
+// cell of the tile itself, and the halo runs from -halo to -1 and from
+// rows/cols to rows/cols + halo - 1.
+//
+// A halo deeper than one cell lets the tile be stepped several times
+// between exchanges with the neighbours. Each step loses one ring of
+// valid cells from the outside, so after "halo" steps only the tile
+// itself is still correct and the halo has to be refreshed.
+//
+// Only the parts of the tile that are still changing are stepped (see
+// ActiveBlocks).
+public class HaloTile
+{
+	public final int rows;
+	public final int cols;
+	public final int halo;
+	private CellGrid current = null;
+	private CellGrid next = null;
+	private ParallelStepper stepper = null;
+	private ActiveBlocks active = null;
+	private boolean changed = true;
+
+
+
+	public HaloTile(int rows, int cols, int halo)
+	{
+		this.rows = rows;
+		this.cols = cols;
+		this.halo = halo;
+		current = new CellGrid(rows + 2*halo, cols + 2*halo);
+		next = new CellGrid(rows + 2*halo, cols + 2*halo);
+		active = new ActiveBlocks(current.rows, current.cols, rows, cols, halo);
+	}
+
+
+
+	public boolean Get(int row, int col)
+	{
+		return current.Get(row + halo, col + halo);
+	}
+
+
+
+	public void Set(int row, int col, boolean hasLife)
+	{
+		current.Set(row + halo, col + halo, hasLife);
+		active.MarkAll();
+	}
+
+
+
+	// Gets word w of a row of the tile (halo excluded), i.e. the cells from
+	// column w * 64 onwards, with the first in the lowest bit.
+	public long GetWord(int row, int w)
+	{
+		long bits = current.GetWord(row + halo, (w << 6) + halo);
+		int count = cols - (w << 6);
+		if (count < 64) bits &= (1L << count) - 1;
+		return bits;
+	}
+
+
+
+	// Gets the region of cells on the side of the tile in direction d, as
+	// {row, col, rows, cols}. If inHalo is set the region is the part of
+	// the halo ring on that side, otherwise it is the edge of the tile
+	// itself that a neighbour on that side needs for its own halo.
+	public int[] Region(Direction d, boolean inHalo)
+	{
+		int[] region = new int[4];
+		Span(d.rows, rows, inHalo, region, 0);
+		Span(d.cols, cols, inHalo, region, 1);
+		return region;
+	}
+
+
+
+	private void Span(int offset, int length, boolean inHalo, int[] region, int i)
+	{
+		if (offset == 0) {
+			region[i] = 0;
+			region[i+2] = length;
+		} else {
+			if (offset < 0) region[i] = inHalo ? -halo : 0;
+			else region[i] = inHalo ? length : length - halo;
+			region[i+2] = halo;
+		}
+	}
+
+
+
+	// Copies the cells of a region (row by row) into consecutive bits.
+	public void GetRegion(int[] region, long[] bits)
+	{
+		int i = 0;
+		for (int r = region[0]; r < region[0] + region[2]; r++)
+		{
+			for (int c = region[1]; c < region[1] + region[3]; c++, i++)
+			{
+				if (Get(r, c)) bits[i >>> 6] |= (1L << (i & 63));
+				else bits[i >>> 6] &= ~(1L << (i & 63));
+			}
+		}
+	}
+
+
+
+	// Copies consecutive bits into the cells of a region, row by row.
+	public void SetRegion(int[] region, long[] bits)
+	{
+		int i = 0;
+		for (int r = region[0]; r < region[0] + region[2]; r++)
+		{
+			for (int c = region[1]; c < region[1] + region[3]; c++, i++)
+				current.Set(r + halo, c + halo, ((bits[i >>> 6] >>> (i & 63)) & 1L) != 0);
+		}
+	}
+
+
+
+	// Kills every cell in a region.
+	public void ClearRegion(int[] region)
+	{
+		for (int r = region[0]; r < region[0] + region[2]; r++)
+		{
+			for (int c = region[1]; c < region[1] + region[3]; c++)
+				current.Set(r + halo, c + halo, false);
+		}
+	}
+
+
+
+	// Steps the tile on the stepper's threads rather than the caller's.
+	// Pass null to go back to stepping on the calling thread.
+	public void SetStepper(ParallelStepper stepper)
+	{
+		this.stepper = stepper;
+	}
+
+
+
+	// Whether any cell (halo included) changed in the last step.
+	public boolean Changed()
+	{
+		return changed;
+	}
+
+
+
+	// The current grid, halo included.
+	public CellGrid Current()
+	{
+		return current;
+	}
+
+
+
+	// Works out the next state of the tile from the current cells and halo,
+	// then makes it the current state. "margin" is how many rows of the halo
+	// on each side are still worth stepping: halo - 1 straight after the
+	// halo has been filled, one less each step after that, and 0 on the
+	// last step before the next exchange.
+	public void Step(int margin)
+	{
+		int fromRow = halo - margin;
+		int toRow = halo + rows + margin;
+		changed = active.Step(current, next, fromRow, toRow, stepper);
+		CellGrid tmp = current;
+		current = next;
+		next = tmp;
+	}
+}
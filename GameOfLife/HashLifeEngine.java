@@ -0,0 +1,376 @@
+// Copyright David Petrie 2008
+//
+// HashLife - steps an unbounded game space held as a quadtree.
+//
+// A node at level n is a 2^n x 2^n square made of four level n-1
+// quarters, down to single cells at level 0. Identical squares are
+// shared, so repeated structure (still lifes, glider streams, guns)
+// is only stored once, and the result of stepping a square is
+// remembered on its node. The next state of the middle of a level n
+// node can be found 2^(n-2) generations ahead in one go, so long runs
+// of regular patterns jump forward a power of two generations per
+// call.
+//
+// Nodes are shared through a cache of at most maxNodes entries. When it
+// is full the least recently used node is dropped from the cache (and
+// loses its remembered result). Anything still in the pattern is kept,
+// the only cost of a dropped node is that it may have to be rebuilt or
+// stepped again later.
+//
+// The space does not wrap around: the root node is grown as the pattern
+// spreads. The root is always centred on row 0, col 0.
+import java.util.*;
+
+public class HashLifeEngine implements LifeEngine
+{
+	// Rough size of a node and its cache entry, used to turn a memory cap
+	// into a node count.
+	public static final int BYTES_PER_NODE = 120;
+
+	private static final Node DEAD = new Node(0);
+	private static final Node ALIVE = new Node(1);
+
+	private LinkedHashMap<Node, Node> cache = null;
+	private ArrayList<Node> empty = new ArrayList<>();
+	private Node root = null;
+	private long generation = 0;
+	private int maxNodes = 0;
+
+
+
+	// A square of cells. Leaves (level 0) are the single cells DEAD and ALIVE.
+	private static final class Node
+	{
+		final Node nw, ne, sw, se;
+		final int level;
+		final long population;
+		final int hash;
+		Node result = null;
+		int resultStep = -1;
+
+		Node(long population)
+		{
+			nw = ne = sw = se = null;
+			level = 0;
+			this.population = population;
+			hash = (int)population;
+		}
+
+		Node(Node nw, Node ne, Node sw, Node se)
+		{
+			this.nw = nw;
+			this.ne = ne;
+			this.sw = sw;
+			this.se = se;
+			level = nw.level + 1;
+			population = nw.population + ne.population + sw.population + se.population;
+			int h = System.identityHashCode(nw);
+			h = h * 31 + System.identityHashCode(ne);
+			h = h * 31 + System.identityHashCode(sw);
+			h = h * 31 + System.identityHashCode(se);
+			hash = h;
+		}
+
+		public int hashCode()
+		{
+			return hash;
+		}
+
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof Node)) return false;
+			Node n = (Node)o;
+			return nw == n.nw && ne == n.ne && sw == n.sw && se == n.se && level == n.level;
+		}
+	}
+
+
+
+	// memoryMB caps the size of the node cache.
+	public HashLifeEngine(int memoryMB)
+	{
+		maxNodes = (int)Math.max(1024, Math.min(Integer.MAX_VALUE, (long)memoryMB * 1024 * 1024 / BYTES_PER_NODE));
+		cache = new LinkedHashMap<Node, Node>(1024, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<Node, Node> eldest) {
+				if (size() <= maxNodes) return false;
+				eldest.getValue().result = null;
+				return true;
+			}
+		};
+		empty.add(DEAD);
+		root = Empty(3);
+	}
+
+
+
+	public void Load(CellGrid pattern, long row, long col)
+	{
+		for (int r = 0; r < pattern.rows; r++)
+		{
+			for (int c = 0; c < pattern.cols; c++)
+			{
+				if (pattern.Get(r, c)) SetCell(row + r, col + c);
+			}
+		}
+	}
+
+
+
+	// Steps forward a power of two generations at a time, one for each bit
+	// set in "generations".
+	public void Step(long generations)
+	{
+		for (int j = 0; j < 63; j++)
+		{
+			if ((generations & (1L << j)) == 0) continue;
+			while (root.level < j + 3 || !IsPadded(root)) root = Expand(root);
+			root = Result(root, j);
+			generation += (1L << j);
+		}
+	}
+
+
+
+	public long GetGeneration()
+	{
+		return generation;
+	}
+
+
+
+	public long GetPopulation()
+	{
+		return root.population;
+	}
+
+
+
+	// Walks down to every live cell, skipping empty squares, so it costs
+	// about as much as the population.
+	public long GetHash()
+	{
+		long half = 1L << (root.level - 1);
+		return Hash(root, -half, -half);
+	}
+
+
+
+	public CellGrid Snapshot(long row, long col, int rows, int cols)
+	{
+		CellGrid g = new CellGrid(rows, cols);
+		long half = 1L << (root.level - 1);
+		Copy(root, -half, -half, g, row, col);
+		return g;
+	}
+
+
+
+	// Number of nodes in the cache.
+	public int GetCacheSize()
+	{
+		return cache.size();
+	}
+
+
+
+	// Copies the live cells of node n, whose top left cell is at top/left,
+	// into the part of g that it overlaps. g's top left is at row/col.
+	private void Copy(Node n, long top, long left, CellGrid g, long row, long col)
+	{
+		if (n.population == 0) return;
+		long size = 1L << n.level;
+		if (top >= row + g.rows || left >= col + g.cols || top + size <= row || left + size <= col) return;
+		if (n.level == 0) {
+			g.Set((int)(top - row), (int)(left - col), true);
+			return;
+		}
+		long half = size >> 1;
+		Copy(n.nw, top, left, g, row, col);
+		Copy(n.ne, top, left + half, g, row, col);
+		Copy(n.sw, top + half, left, g, row, col);
+		Copy(n.se, top + half, left + half, g, row, col);
+	}
+
+
+
+	// Hash of the live cells of node n, whose top left cell is at top/left.
+	private long Hash(Node n, long top, long left)
+	{
+		if (n.population == 0) return 0L;
+		if (n.level == 0) return GameOfLifeUtils.HashWord(top, left, 1L);
+		long half = 1L << (n.level - 1);
+		return Hash(n.nw, top, left) ^ Hash(n.ne, top, left + half)
+			^ Hash(n.sw, top + half, left) ^ Hash(n.se, top + half, left + half);
+	}
+
+
+
+	private void SetCell(long row, long col)
+	{
+		while (true) {
+			long half = 1L << (root.level - 1);
+			if (row >= -half && row < half && col >= -half && col < half) break;
+			root = Expand(root);
+		}
+		long half = 1L << (root.level - 1);
+		root = SetCell(root, row + half, col + half);
+	}
+
+
+
+	// row/col relative to the top left of n.
+	private Node SetCell(Node n, long row, long col)
+	{
+		if (n.level == 0) return ALIVE;
+		long half = 1L << (n.level - 1);
+		if (row < half) {
+			if (col < half) return Join(SetCell(n.nw, row, col), n.ne, n.sw, n.se);
+			return Join(n.nw, SetCell(n.ne, row, col - half), n.sw, n.se);
+		}
+		if (col < half) return Join(n.nw, n.ne, SetCell(n.sw, row - half, col), n.se);
+		return Join(n.nw, n.ne, n.sw, SetCell(n.se, row - half, col - half));
+	}
+
+
+
+	// The shared node with these four quarters.
+	private Node Join(Node nw, Node ne, Node sw, Node se)
+	{
+		Node n = new Node(nw, ne, sw, se);
+		Node shared = cache.get(n);
+		if (shared != null) return shared;
+		cache.put(n, n);
+		return n;
+	}
+
+
+
+	private Node Empty(int level)
+	{
+		while (empty.size() <= level) {
+			Node e = empty.get(empty.size() - 1);
+			empty.add(Join(e, e, e, e));
+		}
+		return empty.get(level);
+	}
+
+
+
+	// A node one level up with n in the middle.
+	private Node Expand(Node n)
+	{
+		Node e = Empty(n.level - 1);
+		return Join(Join(e, e, e, n.nw), Join(e, e, n.ne, e),
+			Join(e, n.sw, e, e), Join(n.se, e, e, e));
+	}
+
+
+
+	// Whether all of n's live cells are in its middle half, i.e. far enough
+	// from the edges to step it 2^(level - 3) generations without losing any.
+	private boolean IsPadded(Node n)
+	{
+		return n.nw.population == n.nw.se.se.population
+			&& n.ne.population == n.ne.sw.sw.population
+			&& n.sw.population == n.sw.ne.ne.population
+			&& n.se.population == n.se.nw.nw.population;
+	}
+
+
+
+	private Node Centre(Node n)
+	{
+		return Join(n.nw.se, n.ne.sw, n.sw.ne, n.se.nw);
+	}
+
+
+
+	private Node Horizontal(Node w, Node e)
+	{
+		return Join(w.ne, e.nw, w.se, e.sw);
+	}
+
+
+
+	private Node Vertical(Node n, Node s)
+	{
+		return Join(n.sw, n.se, s.nw, s.ne);
+	}
+
+
+
+	// The middle half of n (a node one level down), 2^step generations on.
+	// step can be at most level - 2.
+	private Node Result(Node n, int step)
+	{
+		if (n.result != null && n.resultStep == step) return n.result;
+		Node r = null;
+		if (n.population == 0) r = Empty(n.level - 1);
+		else if (n.level == 2) r = Base(n);
+		else {
+			Node n00, n01, n02, n10, n11, n12, n20, n21, n22;
+			if (step == n.level - 2) {
+				// full speed: each half of the time is taken in a separate pass.
+				n00 = Result(n.nw, step - 1);
+				n01 = Result(Horizontal(n.nw, n.ne), step - 1);
+				n02 = Result(n.ne, step - 1);
+				n10 = Result(Vertical(n.nw, n.sw), step - 1);
+				n11 = Result(Centre(n), step - 1);
+				n12 = Result(Vertical(n.ne, n.se), step - 1);
+				n20 = Result(n.sw, step - 1);
+				n21 = Result(Horizontal(n.sw, n.se), step - 1);
+				n22 = Result(n.se, step - 1);
+			} else {
+				// slower: the first pass doesn't move time on at all.
+				n00 = Centre(n.nw);
+				n01 = Centre(Horizontal(n.nw, n.ne));
+				n02 = Centre(n.ne);
+				n10 = Centre(Vertical(n.nw, n.sw));
+				n11 = Centre(Centre(n));
+				n12 = Centre(Vertical(n.ne, n.se));
+				n20 = Centre(n.sw);
+				n21 = Centre(Horizontal(n.sw, n.se));
+				n22 = Centre(n.se);
+			}
+			int next = (step == n.level - 2) ? step - 1 : step;
+			r = Join(Result(Join(n00, n01, n10, n11), next),
+				Result(Join(n01, n02, n11, n12), next),
+				Result(Join(n10, n11, n20, n21), next),
+				Result(Join(n11, n12, n21, n22), next));
+		}
+		n.result = r;
+		n.resultStep = step;
+		return r;
+	}
+
+
+
+	// Next state of the middle 2x2 cells of a 4x4 node.
+	private Node Base(Node n)
+	{
+		int bits = 0;
+		Node[] quarters = { n.nw, n.ne, n.sw, n.se };
+		for (int q = 0; q < 4; q++)
+		{
+			Node c = quarters[q];
+			int r = (q >> 1) * 2;
+			int col = (q & 1) * 2;
+			if (c.nw == ALIVE) bits |= 1 << (r * 4 + col);
+			if (c.ne == ALIVE) bits |= 1 << (r * 4 + col + 1);
+			if (c.sw == ALIVE) bits |= 1 << ((r + 1) * 4 + col);
+			if (c.se == ALIVE) bits |= 1 << ((r + 1) * 4 + col + 1);
+		}
+		return Join(BaseCell(bits, 1, 1), BaseCell(bits, 1, 2), BaseCell(bits, 2, 1), BaseCell(bits, 2, 2));
+	}
+
+
+
+	private Node BaseCell(int bits, int row, int col)
+	{
+		int count = 0;
+		for (Direction d: Direction.values())
+			count += (bits >> ((row + d.rows) * 4 + col + d.cols)) & 1;
+		boolean alive = ((bits >> (row * 4 + col)) & 1) != 0;
+		return (count == 3 || (alive && count == 2)) ? ALIVE : DEAD;
+	}
+}
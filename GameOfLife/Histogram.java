@@ -0,0 +1,153 @@
+// Copyright David Petrie 2008
+//
+// Counts of how long something took (or any other value that isn't
+// negative), kept cheaply enough to record every generation.
+//
+// Values are counted in buckets rather than kept. Values below SUB are
+// counted exactly; above that each power of two is split into SUB buckets,
+// so a value is only known to within 1/SUB of itself (about 6%). Recording
+// a value is a few shifts and an add, and there are never more than 64 *
+// SUB counts however many values are recorded.
+//
+// Only one thread should Record into a histogram. Other threads can read
+// it at any time, but may see a value or two less than have been recorded.
+//
+// A histogram can be written as a line of text and read back with Parse,
+// so that the histograms of several processes can be added together:
+//
+//   <count> <sum> <max> <bucket>:<count> ...
+//
+// with only the buckets that have anything in them.
+import java.util.*;
+
+public class Histogram
+{
+	public static final int SUB_BITS = 4;
+	public static final int SUB = 1 << SUB_BITS;
+
+	private long[] counts = new long[64 * SUB];
+	private long count = 0;
+	private long sum = 0;
+	private long max = 0;
+
+
+
+	public void Record(long value)
+	{
+		if (value < 0) value = 0;
+		counts[Bucket(value)]++;
+		count++;
+		sum += value;
+		if (value > max) max = value;
+	}
+
+
+
+	// Adds everything recorded in another histogram to this one.
+	public void Add(Histogram h)
+	{
+		for (int i = 0; i < counts.length; i++) counts[i] += h.counts[i];
+		count += h.count;
+		sum += h.sum;
+		max = Math.max(max, h.max);
+	}
+
+
+
+	public long GetCount()
+	{
+		return count;
+	}
+
+
+
+	public long GetSum()
+	{
+		return sum;
+	}
+
+
+
+	public long GetMax()
+	{
+		return max;
+	}
+
+
+
+	public double GetMean()
+	{
+		return (count == 0) ? 0.0 : (double)sum / count;
+	}
+
+
+
+	// The value that "percent" percent of the values recorded are at or
+	// below, to within the width of its bucket (the middle of the bucket
+	// is given). 0 if nothing has been recorded.
+	public long GetPercentile(double percent)
+	{
+		long n = count;
+		if (n == 0) return 0;
+		long rank = Math.max(1, (long)Math.ceil(n * percent / 100.0));
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++)
+		{
+			seen += counts[i];
+			if (seen >= rank) return Math.min(max, Low(i) + (Low(i + 1) - 1 - Low(i)) / 2);
+		}
+		return max;
+	}
+
+
+
+	// The bucket a value is counted in.
+	public static int Bucket(long value)
+	{
+		if (value < SUB) return (int)value;
+		int top = 63 - Long.numberOfLeadingZeros(value);
+		return ((top - SUB_BITS + 1) << SUB_BITS) + (int)((value >>> (top - SUB_BITS)) & (SUB - 1));
+	}
+
+
+
+	// The smallest value counted in a bucket.
+	public static long Low(int bucket)
+	{
+		if (bucket < SUB) return bucket;
+		int top = (bucket >> SUB_BITS) + SUB_BITS - 1;
+		if (top > 62) return Long.MAX_VALUE;
+		return (long)(SUB + (bucket & (SUB - 1))) << (top - SUB_BITS);
+	}
+
+
+
+	public String toString()
+	{
+		StringBuilder s = new StringBuilder();
+		s.append(count).append(' ').append(sum).append(' ').append(max);
+		for (int i = 0; i < counts.length; i++)
+		{
+			if (counts[i] != 0) s.append(' ').append(i).append(':').append(counts[i]);
+		}
+		return s.toString();
+	}
+
+
+
+	// Reads a histogram written by toString.
+	public static Histogram Parse(String line)
+	{
+		Histogram h = new Histogram();
+		StringTokenizer st = new StringTokenizer(line, " ");
+		h.count = Long.parseLong(st.nextToken());
+		h.sum = Long.parseLong(st.nextToken());
+		h.max = Long.parseLong(st.nextToken());
+		while (st.hasMoreTokens()) {
+			String bucket = st.nextToken();
+			int colon = bucket.indexOf(':');
+			h.counts[Integer.parseInt(bucket.substring(0, colon))] = Long.parseLong(bucket.substring(colon + 1));
+		}
+		return h;
+	}
+}
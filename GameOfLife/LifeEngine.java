@@ -0,0 +1,31 @@
+// Copyright David Petrie 2008
+//
+// A way of stepping a whole game space forward on a single node.
+//
+// The master normally hands the space out to workers, but it can also
+// run it locally through one of these (see Master.RunLocally). Positions
+// are longs so that engines with an unbounded space can hold patterns
+// far from the origin.
+public interface LifeEngine
+{
+	// Brings the cells of a pattern to life, with the pattern's top left
+	// cell at row/col.
+	public void Load(CellGrid pattern, long row, long col);
+
+	// Moves the space forward by a number of generations.
+	public void Step(long generations);
+
+	// Number of generations stepped since the pattern was loaded.
+	public long GetGeneration();
+
+	// Number of live cells in the whole space.
+	public long GetPopulation();
+
+	// Hash of every live cell in the whole space, wherever it is (see
+	// GameOfLifeUtils.HashWord), for a CycleDetector.
+	public long GetHash();
+
+	// Copies a rows x cols window of the space, starting at row/col, into a
+	// new grid.
+	public CellGrid Snapshot(long row, long col, int rows, int cols);
+}
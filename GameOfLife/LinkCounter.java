@@ -0,0 +1,68 @@
+// Copyright David Petrie 2008
+//
+// Counts the bytes sent and received over one connection, for Metrics.
+//
+// A socket's streams are passed through Count before anything else is
+// put on top of them, so what is counted is what actually goes through
+// the socket, after any buffering. The counts are safe to read from any
+// thread.
+import java.io.*;
+import java.util.concurrent.atomic.*;
+
+public class LinkCounter
+{
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong received = new AtomicLong();
+
+
+
+	// The stream, counting what is read from it as received.
+	public InputStream Count(InputStream in)
+	{
+		return new FilterInputStream(in) {
+			public int read() throws IOException {
+				int b = super.read();
+				if (b >= 0) received.incrementAndGet();
+				return b;
+			}
+
+			public int read(byte[] b, int off, int len) throws IOException {
+				int n = super.read(b, off, len);
+				if (n > 0) received.addAndGet(n);
+				return n;
+			}
+		};
+	}
+
+
+
+	// The stream, counting what is written to it as sent.
+	public OutputStream Count(OutputStream out)
+	{
+		return new FilterOutputStream(out) {
+			public void write(int b) throws IOException {
+				out.write(b);
+				sent.incrementAndGet();
+			}
+
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+				sent.addAndGet(len);
+			}
+		};
+	}
+
+
+
+	public long GetSent()
+	{
+		return sent.get();
+	}
+
+
+
+	public long GetReceived()
+	{
+		return received.get();
+	}
+}
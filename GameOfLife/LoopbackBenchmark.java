@@ -0,0 +1,244 @@
+// Copyright David Petrie 2008
+//
+// Times the whole game - a master and its workers talking to each other
+// over loopback - where the benchmarks module only times the kernels.
+//
+// For each number of workers it starts a master and the workers as child
+// JVMs on this machine, with nothing printed and -Dgol.timing=true, runs
+// the same pattern for the same number of generations, and picks up the
+// timings they print as they finish (see GameOfLifeUtils.TIMING). Then for
+// each run it prints the generations and cell updates per second, and the
+// 50th, 90th and 99th percentile of the time a generation spent in:
+//
+//   compute   a worker stepping its tile (Worker.NextState)
+//   exchange  a worker getting its neighbours' boundaries, waiting for
+//             them included, and sending its own
+//   gather    the master having every worker step, from asking for it
+//             to having all their cells back (or, free running, from
+//             one report to the next)
+//
+// in microseconds, over all the workers.
+//
+// % java LoopbackBenchmark [generations] [size] [pattern] [workers ...]
+//
+// By default it runs 500 generations of a 512 x 512 space filled with a
+// random soup (the same every time, a third of the cells alive) for 1, 2,
+// 4, 6, 9 and 16 workers. A pattern of "soup" is the random soup. Any
+// -Dgol.* settings the benchmark is started with are passed on to the
+// master and the workers, e.g. -Dgol.haloDepth=4 or -Dgol.reportEvery=10.
+//
+// The master keeps its state in statics, so each run needs a JVM of its
+// own rather than a thread.
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class LoopbackBenchmark
+{
+	public static int generations = 500;
+	public static int size = 512;
+	public static String pattern = "soup";
+	public static int[] workerCounts = { 1, 2, 4, 6, 9, 16 };
+	public static double soupDensity = 1.0 / 3.0;
+	public static long soupSeed = 2008;
+
+
+
+	// Starts the master and "workers" workers, waits for the run to finish
+	// and prints a line of results, or why there aren't any.
+	public static void Run(int workers) throws IOException
+	{
+		ArrayList<Process> processes = new ArrayList<>();
+		ArrayList<File> outputs = new ArrayList<>();
+		try {
+			int masterPort = FreePort();
+			File masterOut = File.createTempFile("master", ".out");
+			outputs.add(masterOut);
+			Process master = Start(masterOut, "Master", "" + masterPort, "" + generations, pattern, "" + workers);
+			processes.add(master);
+			Thread.sleep(500);
+			for (int i = 0; i < workers; i++)
+			{
+				File workerOut = File.createTempFile("worker", ".out");
+				outputs.add(workerOut);
+				processes.add(Start(workerOut, "Worker", "" + FreePort(), "localhost", "" + masterPort));
+			}
+
+			if (!master.waitFor(GameOfLifeUtils.TIMEOUT, TimeUnit.SECONDS)) {
+				System.out.println(String.format("%7d  master timed out, see %s", workers, masterOut));
+				outputs.clear();
+				return;
+			}
+			long deadline = System.currentTimeMillis() + 10000;
+			for (File f: outputs.subList(1, outputs.size()))
+			{
+				while (!Finished(f) && System.currentTimeMillis() < deadline) Thread.sleep(100);
+			}
+			if (!Report(workers, outputs)) outputs.clear();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted waiting for the run with " + workers + " workers");
+		} finally {
+			for (Process p: processes) p.destroyForcibly();
+			for (File f: outputs) f.delete();
+		}
+	}
+
+
+
+	// Whether a worker has printed its last timing. The workers don't exit
+	// once the run is over, so they are stopped when they have.
+	public static boolean Finished(File output) throws IOException
+	{
+		BufferedReader in = new BufferedReader(new FileReader(output));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.startsWith("timing exchange ")) return true;
+			}
+			return false;
+		} finally {
+			in.close();
+		}
+	}
+
+
+
+	// Reads the timings from the master's and workers' output and prints
+	// them. Returns false, leaving the output for a look, if the master
+	// didn't finish the run.
+	public static boolean Report(int workers, ArrayList<File> outputs) throws IOException
+	{
+		long runNanos = 0;
+		long steps = 0;
+		long cells = 0;
+		Histogram compute = new Histogram();
+		Histogram exchange = new Histogram();
+		Histogram gather = new Histogram();
+		for (File f: outputs)
+		{
+			BufferedReader in = new BufferedReader(new FileReader(f));
+			try {
+				String line;
+				while ((line = in.readLine()) != null) {
+					if (!line.startsWith("timing ")) continue;
+					StringTokenizer st = new StringTokenizer(line.substring(7), " ");
+					String phase = st.nextToken();
+					String rest = line.substring(7 + phase.length() + 1);
+					if (phase.equals("run")) {
+						runNanos = Long.parseLong(st.nextToken());
+						steps = Long.parseLong(st.nextToken());
+						cells = Long.parseLong(st.nextToken()) * Long.parseLong(st.nextToken());
+					}
+					else if (phase.equals("compute")) compute.Add(Histogram.Parse(rest));
+					else if (phase.equals("exchange")) exchange.Add(Histogram.Parse(rest));
+					else if (phase.equals("gather")) gather.Add(Histogram.Parse(rest));
+				}
+			} finally {
+				in.close();
+			}
+		}
+		if (runNanos == 0) {
+			System.out.println(String.format("%7d  the run didn't finish, see %s", workers, outputs.get(0)));
+			return false;
+		}
+		double seconds = runNanos / 1e9;
+		System.out.println(String.format("%7d %8d %9.1f %9.1f  %s  %s  %s", workers, steps, steps / seconds,
+			steps * cells / seconds / 1e6, Percentiles(compute), Percentiles(exchange), Percentiles(gather)));
+		return true;
+	}
+
+
+
+	// The 50th, 90th and 99th percentiles in microseconds.
+	public static String Percentiles(Histogram h)
+	{
+		return String.format("%7.1f %7.1f %7.1f", h.GetPercentile(50) / 1e3, h.GetPercentile(90) / 1e3, h.GetPercentile(99) / 1e3);
+	}
+
+
+
+	// Starts a JVM running one of the game's classes, with the same class
+	// path as ours, its output going to a file.
+	public static Process Start(File output, String... command) throws IOException
+	{
+		ArrayList<String> args = new ArrayList<>();
+		args.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		args.add("-cp");
+		args.add(System.getProperty("java.class.path"));
+		args.add("-Dgol.render=off");
+		args.add("-Dgol.rows=" + size);
+		args.add("-Dgol.cols=" + size);
+		for (String name: System.getProperties().stringPropertyNames())
+		{
+			if (name.startsWith("gol.")) args.add("-D" + name + "=" + System.getProperty(name));
+		}
+		args.add("-Dgol.timing=true");
+		args.addAll(Arrays.asList(command));
+		ProcessBuilder builder = new ProcessBuilder(args);
+		builder.redirectErrorStream(true);
+		builder.redirectOutput(output);
+		return builder.start();
+	}
+
+
+
+	// A port nobody is listening on just now.
+	public static int FreePort() throws IOException
+	{
+		ServerSocket s = new ServerSocket(0);
+		try {
+			return s.getLocalPort();
+		} finally {
+			s.close();
+		}
+	}
+
+
+
+	// Writes a size x size random soup as a pattern file, in the original
+	// format.
+	public static String WriteSoup() throws IOException
+	{
+		File f = File.createTempFile("soup", ".txt");
+		f.deleteOnExit();
+		Random random = new Random(soupSeed);
+		PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(f)));
+		try {
+			for (int r = 0; r < size; r++)
+			{
+				StringBuilder row = new StringBuilder(size);
+				for (int c = 0; c < size; c++) row.append(random.nextDouble() < soupDensity ? 'x' : 'o');
+				out.println(row);
+			}
+		} finally {
+			out.close();
+		}
+		return f.getPath();
+	}
+
+
+
+	public static void main(String[] args)
+	{
+		if (args.length > 0) generations = Integer.parseInt(args[0]);
+		if (args.length > 1) size = Integer.parseInt(args[1]);
+		if (args.length > 2) pattern = args[2];
+		if (args.length > 3) {
+			workerCounts = new int[args.length - 3];
+			for (int i = 3; i < args.length; i++) workerCounts[i - 3] = Integer.parseInt(args[i]);
+		}
+
+		try {
+			if (pattern.equals("soup")) pattern = WriteSoup();
+			else pattern = new File(pattern).getAbsolutePath();
+			System.out.println(generations + " generations of " + size + " x " + size + ", pattern " + pattern);
+			String p = String.format("%7s %7s %7s", "p50", "p90", "p99");
+			System.out.println(String.format("%38s%-25s%-25s%s", "", "compute (us)", "exchange (us)", "gather (us)"));
+			System.out.println(String.format("%7s %8s %9s %9s  %s  %s  %s", "workers", "gens", "gen/s", "Mcells/s", p, p, p));
+			for (int workers: workerCounts) Run(workers);
+		} catch (IOException e) {
+			System.err.println(e);
+		}
+	}
+}
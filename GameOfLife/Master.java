@@ -4,8 +4,12 @@
 //
 // Incoming connections are handled with an instance of the 
 // MasterConnectionHandler running in its own thread.
+//
+// How long each generation spends gathering and printing the cells, and
+// how much goes over each worker's connection, are kept in its Metrics.
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
 
 
@@ -15,20 +19,57 @@ public class Master {
 	public static int generations = 10;
 	public static String patternFile = "";
 	public static int workers = 1;
+	public static int haloDepth = Integer.getInteger("gol.haloDepth", 1);
+	public static int resyncEvery = Integer.getInteger("gol.resyncEvery", 0);
+	public static int reportEvery = Integer.getInteger("gol.reportEvery", 0);
+	public static String engine = System.getProperty("gol.engine", "");
+	public static int engineMemory = Integer.getInteger("gol.engineMemory", 256);
+	public static boolean unbounded = Boolean.getBoolean("gol.unbounded");
+	public static int tileSize = Integer.getInteger("gol.tileSize", 20);
+	public static int spaceRows = Integer.getInteger("gol.rows", 0);
+	public static int spaceCols = Integer.getInteger("gol.cols", 0);
+	public static int balanceEvery = Integer.getInteger("gol.balanceEvery", 100);
+	public static double balanceSlack = 1.25;
+	public static String checkpointFile = System.getProperty("gol.checkpoint", "");
+	public static int checkpointEvery = Integer.getInteger("gol.checkpointEvery", 100);
+	public static String resumeFile = System.getProperty("gol.resume", "");
+	public static int startGeneration = 0;
+	public static int lastCheckpoint = 0;
+	public static ExecutorService checkpointThread = null;
+	public static Future<?> checkpointWrite = null;
+	public static boolean recovering = false;
+	public static int cycleHistory = Integer.getInteger("gol.cycleHistory", 1024);
+	public static CycleDetector cycles = null;
+	public static FrameRenderer renderer = null;
+	public static String logFile = System.getProperty("gol.log", "");
+	public static int logKeyframes = Integer.getInteger("gol.logKeyframes", 100);
+	public static RunLog runLog = null;
+	public static Metrics metrics = new Metrics("master");
+	public static Histogram gatherTimes = metrics.GetPhase("gather");
+	public static Histogram printTimes = metrics.GetPhase("print");
+	public static int reached = 0;
+	public static Partition partition = null;
+	public static ArrayList<HaloPiece> pieces = null;
+	public static int spaceRow = 0;
+	public static int spaceCol = 0;
+	public static int minRows = 0;
+	public static int minCols = 0;
 	public static ServerSocket server = null;
 	public static MasterConnectionHandler masterConnections = null;
-	public static Cell[][] previousCells = null;
-	public static Cell[][] currentCells = null;
+	public static SparseGrid currentCells = null;
+	public static ExecutorService workerThreads = null;
 
 
 	// Setup workers then run the game of life. We simply wait until an 
 	// expected number of workers attempt to connect.
 	public static void SetupWorkers() throws IOException
 	{
-		while(masterConnections.newConnections.size() < workers); 
-		masterConnections.StartNewConnections();
-		while(masterConnections.liveConnections.size() < workers);
-		ShowNeighbours();
+		masterConnections.StartNewConnections(workers);
+		masterConnections.AwaitLiveConnections();
+		int n = masterConnections.GetLiveConnections().size();
+		if (partition != null && partition.GetSize() == n) SetPartition(partition);
+		else SetPartition(Partition.Balanced(currentCells.rows, currentCells.cols, n, !unbounded));
+		ShowTiles();
 	}
 
 
@@ -38,7 +79,17 @@ public class Master {
 	{
 		ArrayList<MasterConnection> liveConnections = masterConnections.GetLiveConnections();
 		for (MasterConnection w: liveConnections)
-			w.SendWorkInformation(GenerateWorkerCells(liveConnections.size(), w.GetID()));
+			SendCells(liveConnections.size(), w, startGeneration);
+	}
+
+
+
+	// Sends a worker its tile of the space the workers cover, at generation.
+	public static void SendCells(int workers, MasterConnection w, int generation) throws IOException
+	{
+		int[] tile = partition.GetTile(w.GetID());
+		CellGrid cells = GenerateWorkerCells(w.GetID());
+		w.SendWorkInformation(cells, spaceRow + tile[0], spaceCol + tile[1], generation);
 	}
 
 
@@ -46,136 +97,694 @@ public class Master {
 	// Loop until generation limit reached. Do
 	// the following:
 	// - Send a heartbeat to each worker to start the next state.
-	// - Collect the cells from each worker.
-	// - Break if cells identical. 
+	// - Collect the changed cells from each worker (or all of them every
+	//   resyncEvery generations, if set).
+	// - Break if the space is the same as it was at an earlier generation
+	//   (see FoundCycle).
+	// - In an unbounded space, move the tiles if the cells need it, or
+	//   otherwise move them if some workers are taking much longer than
+	//   the rest (see Rebalance).
+	// - Checkpoint the space every so often (see SaveCheckpoint).
+	//
+	// If a worker fails, the step is abandoned and the tiles are handed out
+	// again at the last generation (see Recover).
 	public static void GameOfLifeLoop() throws IOException
 	{
 		ArrayList<MasterConnection> liveConnections = masterConnections.GetLiveConnections();
-		int i = 0;
+		workerThreads = Executors.newFixedThreadPool(liveConnections.size());
+		int i = startGeneration;
+		StartCycles(i);
 		while(i < generations) {
-			for (MasterConnection w: liveConnections)
-			{
-				w.SetNextState();
+			boolean full = (resyncEvery > 0) && ((i + 1) % resyncEvery == 0);
+			currentCells.StartUndo();
+			try {
+				long start = System.nanoTime();
+				StepWorkers(liveConnections, full);
+				gatherTimes.Record(System.nanoTime() - start);
+			} catch (WorkerFailedException e) {
+				currentCells.Undo();
+				currentCells.StopUndo();
+				Recover(liveConnections, i);
+				continue;
 			}
-			previousCells = currentCells;
-			currentCells = new Cell[currentCells.length][currentCells[0].length];
+			currentCells.StopUndo();
+			PrintCells(i);
+			if (FoundCycle(liveConnections, i + 1)) break;
+			i++;
+			try {
+				if (i < generations && ((unbounded && FitSpace()) || Rebalance(liveConnections))) Retile(liveConnections, i);
+			} catch (WorkerFailedException e) {
+				Recover(liveConnections, i);
+			}
+			SaveCheckpoint(i);
+		}
+	}
+
+
+
+	// Free running version of the loop: the workers are set going for all
+	// the generations at once, only synchronising with their neighbours,
+	// and report their cells every reportEvery generations. Break if the
+	// space is the same at a report as it was at an earlier one - from then
+	// on the reports would only go round the same cycle. The cycle is only
+	// seen between reports, so the period found is a multiple of
+	// reportEvery, and the cycle may have started up to a report earlier.
+	//
+	// If the tiles need moving after a report, to follow the cells in an
+	// unbounded space or to even out the workers' load, the workers are
+	// stopped, the tiles are moved (which also winds the workers back to the
+	// generation of the report) and they are set going again. The same
+	// happens if a worker fails, from the last report that every worker
+	// made.
+	public static void FreeRunLoop() throws IOException
+	{
+		final ArrayList<MasterConnection> liveConnections = masterConnections.GetLiveConnections();
+		workerThreads = Executors.newFixedThreadPool(liveConnections.size());
+		int start = startGeneration;
+		StartCycles(start);
+		while (start >= 0 && start < generations)
+			start = FreeRun(liveConnections, start);
+	}
+
+
+
+	// Runs the workers freely from generation "start". Returns the
+	// generation they were stopped at to move the tiles, or to recover from
+	// a worker failing (the tiles have been handed out again either way),
+	// or generations if they ran to the end, or -1 if the cells started to
+	// cycle.
+	public static int FreeRun(final ArrayList<MasterConnection> liveConnections, int start) throws IOException
+	{
+		// the last generation every worker reported, and the space that
+		// logs the changes made to it since then (see SparseGrid.StartUndo)
+		int good = start;
+		SparseGrid goodCells = currentCells;
+		try {
 			for (MasterConnection w: liveConnections)
+				w.Run(generations - start, reportEvery);
+
+			int reports = (generations - start + reportEvery - 1) / reportEvery;
+			for (int r = 0; r < reports; r++)
 			{
-				ArrayList<Cell> list = w.GetCells();
-				for(Cell c: list) currentCells[c.row][c.col] = c;
+				currentCells.StartUndo();
+				final int[] generation = new int[1];
+				ArrayList<Callable<Void>> tasks = new ArrayList<>();
+				for (final MasterConnection w: liveConnections)
+				{
+					tasks.add(new Callable<Void>() {
+						public Void call() throws IOException {
+							generation[0] = w.GetReport(currentCells);
+							return null;
+						}
+					});
+				}
+				long gather = System.nanoTime();
+				RunOnWorkers(tasks);
+				gatherTimes.Record(System.nanoTime() - gather);
+
+				PrintCells(generation[0] - 1);
+				boolean stop = FoundCycle(liveConnections, generation[0]);
+				boolean refit = !stop && generation[0] < generations && ((unbounded && FitSpace()) || Rebalance(liveConnections));
+				good = generation[0];
+				goodCells.StopUndo();
+				goodCells = currentCells;
+				SaveCheckpoint(generation[0]);
+				for (MasterConnection w: liveConnections)
+					w.SendReply(stop || refit);
+				if (stop) return -1;
+				if (refit) {
+					Retile(liveConnections, generation[0]);
+					return generation[0];
+				}
 			}
-			System.out.println("Cells at " + i);
-			GameOfLifeUtils.PrintCells(currentCells);
-			if (GameOfLifeUtils.CompareCells(previousCells, currentCells)) break;
-			i++;
+			return generations;
+		} catch (WorkerFailedException e) {
+			goodCells.Undo();
+			goodCells.StopUndo();
+			currentCells = goodCells;
+			Recover(liveConnections, good);
+			return good;
 		}
 	}
 
 
 
-	// Shows neighbours for each worker
-	public static void ShowNeighbours() throws IOException
+	// Starts looking for cycles from "generation" (see CycleDetector).
+	public static void StartCycles(int generation)
 	{
-		ArrayList<MasterConnection> liveConnections = masterConnections.GetLiveConnections();
+		cycles = new CycleDetector(cycleHistory);
+		cycles.Add(generation, GameOfLifeUtils.HashCells(currentCells));
+	}
+
+
+
+	// Combines the hashes of the workers' tiles as of "generation". Returns
+	// whether the space was the same at an earlier generation in the last
+	// cycleHistory (-Dgol.cycleHistory) ones, and if so says when the cycle
+	// started and how long it is.
+	public static boolean FoundCycle(ArrayList<MasterConnection> liveConnections, int generation)
+	{
+		long hash = 0L;
+		for (MasterConnection w: liveConnections) hash ^= w.GetHash();
+		if (!cycles.Add(generation, hash)) return false;
+		System.out.println("Cells repeat every " + cycles.GetPeriod() + " generations from generation " + cycles.GetStart());
+		return true;
+	}
+
+
+
+	// Prints the space the workers cover, as it is after a generation. The
+	// printing is done on the renderer's own thread (see FrameRenderer).
+	// With -Dgol.log=<file> it is also added to a run log (see RunLog).
+	public static void PrintCells(int generation) throws IOException
+	{
+		long start = System.nanoTime();
+		reached = generation + 1;
+		renderer.Submit(generation, currentCells, spaceRow, spaceCol, unbounded);
+		if (runLog != null)
+			runLog.Write(generation, currentCells.Snapshot(spaceRow, spaceCol, currentCells.rows, currentCells.cols), spaceRow, spaceCol);
+		printTimes.Record(System.nanoTime() - start);
+	}
+
+
+
+	// In an unbounded space (-Dgol.unbounded=true) the workers only cover
+	// a window of it, with nothing beyond the outer tiles. Cells can move
+	// at most one row or column a generation, so if any live cell comes
+	// within GetSpaceMargin() of the window's edge, the window is moved and
+	// grown to fit around the live cells again, with room to spare. It is
+	// also shrunk (but never below its starting size) when the live cells
+	// take up less than half of it each way, which drops the tiles that
+	// have emptied out.
+	//
+	// Returns whether the window changed, in which case the tiles have to
+	// be handed out again (see Retile).
+	public static boolean FitSpace()
+	{
+		int[] b = currentCells.GetBounds();
+		if (b == null) return false;
+		int margin = GetSpaceMargin();
+		boolean near = b[0] - spaceRow < margin || b[1] - spaceCol < margin
+			|| spaceRow + currentCells.rows - b[2] < margin || spaceCol + currentCells.cols - b[3] < margin;
+
+		int rows = FitSpan(b[2] - b[0], margin, minRows);
+		int cols = FitSpan(b[3] - b[1], margin, minCols);
+		boolean loose = rows * 2 <= currentCells.rows && cols * 2 <= currentCells.cols;
+		if (!near && !loose) return false;
+
+		spaceRow = b[0] - (rows - (b[2] - b[0])) / 2;
+		spaceCol = b[1] - (cols - (b[3] - b[1])) / 2;
+		currentCells = currentCells.Copy(rows, cols);
+		SetPartition(Partition.Balanced(rows, cols, partition.GetSize(), false));
+		System.out.println("Space moved to " + spaceRow + "," + spaceCol + " (" + rows + " x " + cols + ")");
+		return true;
+	}
+
+
+
+	// Size of the window along one side: the live cells plus room for them
+	// to move, no smaller than "min".
+	private static int FitSpan(int live, int margin, int min)
+	{
+		return Math.max(min, live + 2 * (4 * margin + live / 4));
+	}
+
+
+
+	// How close live cells may come to the edge of an unbounded space before
+	// it is moved: they can move one cell a generation and the master checks
+	// after every generation, or every report when running freely.
+	public static int GetSpaceMargin()
+	{
+		return Math.max(1, reportEvery) + 1;
+	}
+
+
+
+	// With -Dgol.checkpoint=<file>, saves the space to the file every
+	// checkpointEvery generations (-Dgol.checkpointEvery, 100 by default)
+	// once the workers have reached "generation" (see Checkpoint). The space
+	// is copied and written out on a thread of its own while the workers
+	// carry on; if the last checkpoint is still being written this one is
+	// skipped.
+	public static void SaveCheckpoint(final int generation)
+	{
+		if (checkpointFile.equals("") || checkpointEvery <= 0 || generation - lastCheckpoint < checkpointEvery) return;
+		if (checkpointWrite != null && !checkpointWrite.isDone()) return;
+		lastCheckpoint = generation;
+
+		final Checkpoint c = new Checkpoint(generation, currentCells.Copy());
+		c.spaceRow = spaceRow;
+		c.spaceCol = spaceCol;
+		c.minRows = minRows;
+		c.minCols = minCols;
+		c.unbounded = unbounded;
+		c.partition = partition;
+		if (checkpointThread == null) checkpointThread = Executors.newSingleThreadExecutor();
+		checkpointWrite = checkpointThread.submit(new Runnable() {
+			public void run() {
+				try {
+					c.Write(checkpointFile);
+				} catch (IOException e) {
+					System.err.println("Checkpoint at generation " + generation + " failed: " + e);
+				}
+			}
+		});
+	}
+
+
+
+	// Picks the run up from the checkpoint in resumeFile (-Dgol.resume)
+	// instead of starting from the pattern. The workers are given the tiles
+	// they had if there are as many of them as before.
+	public static void Resume() throws IOException
+	{
+		Checkpoint c = Checkpoint.Read(resumeFile);
+		currentCells = c.cells;
+		spaceRow = c.spaceRow;
+		spaceCol = c.spaceCol;
+		minRows = c.minRows;
+		minCols = c.minCols;
+		unbounded = c.unbounded;
+		partition = c.partition;
+		startGeneration = lastCheckpoint = c.generation;
+		System.out.println("Resuming from generation " + c.generation + " of " + resumeFile);
+	}
+
+
+
+	// Dynamic load balancing. Every worker reports how long it spends
+	// stepping its tile each generation. Once they have all reported over
+	// balanceEvery generations (-Dgol.balanceEvery, 0 to turn it off), if
+	// the slowest is taking more than balanceSlack times the average, the
+	// tile edges are moved so the busy parts of the space are shared out
+	// more evenly (see Partition.Rebalanced). Workers that report no time at
+	// all are balanced on their populations instead.
+	//
+	// Returns whether the tiles moved, in which case they have to be handed
+	// out again (see Retile). Otherwise the times start again from zero.
+	public static boolean Rebalance(ArrayList<MasterConnection> liveConnections)
+	{
+		if (balanceEvery <= 0 || liveConnections.size() < 2) return false;
+		double[] times = new double[partition.GetSize()];
+		double[] populations = new double[partition.GetSize()];
+		for (MasterConnection w: liveConnections)
+		{
+			if (w.GetSteps() < balanceEvery) return false;
+			times[w.GetID()] = w.GetStepTime();
+			populations[w.GetID()] = w.GetPopulation();
+		}
 		for (MasterConnection w: liveConnections)
+			w.ResetLoad();
+
+		double[] loads = times;
+		double total = 0, max = 0;
+		for (double t: times) total += t;
+		if (total == 0) loads = populations;
+		total = 0;
+		for (double l: loads)
+		{
+			total += l;
+			max = Math.max(max, l);
+		}
+		if (total == 0 || max <= balanceSlack * total / loads.length) return false;
+
+		Partition p = partition.Rebalanced(loads, Math.max(1, haloDepth));
+		if (p.equals(partition)) return false;
+		SetPartition(p);
+		System.out.println("Tiles rebalanced, busiest worker at " + (int)(100 * max * loads.length / total) + "% of the average load");
+		return true;
+	}
+
+
+
+	// Hands every worker its tile of the space again after FitSpace or
+	// Rebalance has moved it, at "generation". Every worker drains the boundaries it has
+	// for its old tile before any of them is given its new one.
+	public static void Retile(final ArrayList<MasterConnection> liveConnections, final int generation) throws IOException
+	{
+		ArrayList<Callable<Void>> tasks = new ArrayList<>();
+		for (final MasterConnection w: liveConnections)
+		{
+			tasks.add(new Callable<Void>() {
+				public Void call() throws IOException {
+					w.StartRetile();
+					return null;
+				}
+			});
+		}
+		RunOnWorkers(tasks);
+
+		tasks.clear();
+		for (final MasterConnection w: liveConnections)
+		{
+			tasks.add(new Callable<Void>() {
+				public Void call() throws IOException {
+					SendCells(liveConnections.size(), w, generation);
+					return null;
+				}
+			});
+		}
+		RunOnWorkers(tasks);
+	}
+
+
+
+	// Has every worker step to the next state at once, on a thread each, and
+	// puts the cells each one sends back into currentCells as they arrive.
+	// Returns when all the workers have reported.
+	public static void StepWorkers(ArrayList<MasterConnection> liveConnections, final boolean full) throws IOException
+	{
+		ArrayList<Callable<Void>> tasks = new ArrayList<>();
+		for (final MasterConnection w: liveConnections)
 		{
-			System.out.println("Neighbours for worker " + w.GetID());
-			for (Direction d: Direction.values()) {
-				MasterConnection neighbour = GetNeighbour(liveConnections.size(), w.GetID(), d);
-				if (neighbour == null) System.out.println("NONE at " + d);
-				else System.out.println(neighbour.GetInfo() + " at " + d);
+			tasks.add(new Callable<Void>() {
+				public Void call() throws IOException {
+					w.SetNextState(full);
+					w.GetCells(currentCells);
+					return null;
+				}
+			});
+		}
+		RunOnWorkers(tasks);
+	}
+
+
+
+	// Runs a task per worker on the worker threads, and waits for them all.
+	// If any worker failed on the way, throws a WorkerFailedException
+	// whatever the tasks themselves threw.
+	public static void RunOnWorkers(ArrayList<Callable<Void>> tasks) throws IOException
+	{
+		IOException error = null;
+		try {
+			for (Future<Void> f: workerThreads.invokeAll(tasks))
+			{
+				try {
+					f.get();
+				} catch (ExecutionException e) {
+					if (error != null) continue;
+					if (e.getCause() instanceof IOException) error = (IOException)e.getCause();
+					else error = new IOException(e.getCause());
+				}
 			}
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted waiting for workers");
 		}
+		if (error != null && IsRecovering() && !(error instanceof WorkerFailedException))
+			error = new WorkerFailedException("Worker failed: " + error);
+		if (error != null) throw error;
 	}
 
 
 
-	// Get possible neighbours for a worker.
-	public static int GetPossibleNeighbours(MasterConnection w) throws IOException
+	// A worker has failed: it disconnected, or sent nothing for
+	// GameOfLifeUtils.DEAD_AFTER seconds. Asks the other workers to drop
+	// what they're doing, if they haven't been asked already, as they may
+	// be waiting on its boundaries. Returns the exception to throw.
+	public static synchronized WorkerFailedException Fail(MasterConnection w, String reason)
 	{
-		int count = 0;
-		if (masterConnections.GetLiveConnections().size() == 1) return 8;
-		for (Direction d: Direction.values()) {
-			MasterConnection wc = GetNeighbour(w, d);
-			if (wc != null) count++;
+		if (!w.HasFailed()) {
+			w.SetFailed();
+			System.out.println("Worker " + w.GetID() + " failed: " + reason);
+			if (!recovering) {
+				recovering = true;
+				ArrayList<MasterConnection> live = masterConnections.GetLiveConnections();
+				synchronized(live) {
+					for (MasterConnection other: live)
+					{
+						if (!other.HasFailed()) other.SendRecover();
+					}
+				}
+			}
 		}
-		return count;
+		return new WorkerFailedException("Worker " + w.GetID() + " failed: " + reason);
 	}
 
 
 
-	// Gets the neighbouring worker for w in the given direction.
-	public static MasterConnection GetNeighbour(MasterConnection w, Direction d) throws IOException
+	public static synchronized boolean IsRecovering()
 	{
-		MasterConnection neighbour = GetNeighbour(masterConnections.GetLiveConnections().size(), w.GetID(), d);
-		if (neighbour == null) return w;
-		return neighbour;
+		return recovering;
 	}
 
 
 
-	// Generates a subset of cells and gives them to the worker.
-	public static Cell[][] GenerateWorkerCells(int workers, int workerID)
-	{	
-		int rows = GameOfLifeUtils.GetWorkerPatternRows(workers);
-		int cols = GameOfLifeUtils.GetWorkerPatternCols(workers);
-		int workerRow = GameOfLifeUtils.GetWorkerRow(workers, workerID);
-		int workerCol = GameOfLifeUtils.GetWorkerCol(workers, workerID);
+	// Hands the tiles out again at "generation" after a worker has failed,
+	// from the master's own copy of the space (which must be as it was at
+	// that generation).
+	//
+	// The failed workers are dropped, and once every other worker has said
+	// it's recovering (see Worker.Recover), each failed worker's tile is
+	// given to a standby. If there aren't enough standbys, the space is
+	// split again between the workers that are left. If another worker
+	// fails in the meantime, it all starts again.
+	public static void Recover(final ArrayList<MasterConnection> liveConnections, final int generation) throws IOException
+	{
+		while (true) {
+			ArrayList<Integer> tiles = new ArrayList<>();
+			synchronized(Master.class) {
+				synchronized(liveConnections) {
+					for (Iterator<MasterConnection> it = liveConnections.iterator(); it.hasNext(); )
+					{
+						MasterConnection w = it.next();
+						if (!w.HasFailed()) continue;
+						tiles.add(w.GetID());
+						it.remove();
+					}
+				}
+			}
+			try {
+				ArrayList<Callable<Void>> tasks = new ArrayList<>();
+				for (final MasterConnection w: liveConnections)
+				{
+					tasks.add(new Callable<Void>() {
+						public Void call() throws IOException {
+							w.AwaitRecovering();
+							return null;
+						}
+					});
+				}
+				RunOnWorkers(tasks);
+			} catch (WorkerFailedException e) {
+				continue;
+			}
+			synchronized(Master.class) {
+				recovering = false;
+			}
+
+			for (int i = 0; i < tiles.size(); i++)
+			{
+				MasterConnection w = masterConnections.TakeStandby();
+				if (w == null) break;
+				w.SetID(tiles.get(i));
+				synchronized(liveConnections) {
+					liveConnections.add(w);
+				}
+				System.out.println("Standby worker " + w.GetAddress() + " takes over tile " + w.GetID());
+			}
+			if (liveConnections.isEmpty()) throw new IOException("Every worker has failed");
+			if (liveConnections.size() < partition.GetSize()) {
+				synchronized(liveConnections) {
+					Collections.sort(liveConnections, new Comparator<MasterConnection>() {
+						public int compare(MasterConnection a, MasterConnection b) {
+							return a.GetID() - b.GetID();
+						}
+					});
+					for (int i = 0; i < liveConnections.size(); i++) liveConnections.get(i).SetID(i);
+				}
+				SetPartition(Partition.Balanced(currentCells.rows, currentCells.cols, liveConnections.size(), !unbounded));
+				ShowTiles();
+			}
+			System.out.println("Recovering at generation " + generation + " with " + liveConnections.size() + " workers");
+
+			try {
+				ArrayList<Callable<Void>> tasks = new ArrayList<>();
+				for (final MasterConnection w: liveConnections)
+				{
+					tasks.add(new Callable<Void>() {
+						public Void call() throws IOException {
+							SendCells(liveConnections.size(), w, generation);
+							return null;
+						}
+					});
+				}
+				RunOnWorkers(tasks);
+				return;
+			} catch (WorkerFailedException e) {
+				continue;
+			}
+		}
+	}
+
 
-		int rowCells = currentCells.length / rows;
-		int colCells = currentCells[0].length / cols;
-		
-		Cell[][] subCells = new Cell[rowCells][colCells];
 
-		for (int row = 0; row < rowCells; row++)
+	// Runs the game on this node alone with one of the LifeEngines, rather
+	// than handing it out to workers: "grid" steps the same wrapped space
+	// the workers would, one generation at a time; "hashlife" runs the
+	// pattern on an unbounded space and can jump many generations at once,
+	// using at most engineMemory MB for its node cache; "sparse" also runs
+	// on an unbounded space, a generation at a time, only storing the parts
+	// of it with live cells.
+	//
+	// Prints the part of the space the workers would have had every
+	// reportEvery generations (or every generation). Break if the whole
+	// space, not just the part printed, comes round to what it was at an
+	// earlier print (see CycleDetector and LifeEngine.GetHash).
+	public static void RunLocally() throws IOException
+	{
+		LifeEngine e = null;
+		if (engine.equals("grid")) e = new GridEngine(currentCells.rows, currentCells.cols);
+		else if (engine.equals("hashlife")) e = new HashLifeEngine(engineMemory);
+		else if (engine.equals("sparse")) e = new SparseEngine();
+		else throw new IOException("Unknown engine: " + engine);
+
+		for (int[] chunk: currentCells.GetChunks())
+			e.Load(currentCells.Snapshot(chunk[0], chunk[1], SparseGrid.CHUNK, SparseGrid.CHUNK), chunk[0], chunk[1]);
+		int step = Math.max(1, reportEvery);
+		cycles = new CycleDetector(cycleHistory);
+		cycles.Add(startGeneration, e.GetHash());
+		while (startGeneration + e.GetGeneration() < generations)
 		{
-			for (int col = 0; col < colCells; col++)
-			{
-				subCells[row][col] = currentCells[row+(workerRow * rowCells)][col+(workerCol * colCells)];
+			e.Step(Math.min(step, generations - startGeneration - e.GetGeneration()));
+			CellGrid window = e.Snapshot(0, 0, currentCells.rows, currentCells.cols);
+			currentCells = new SparseGrid(window.rows, window.cols);
+			currentCells.CopyRegion(window, 0, 0, 0, 0, window.rows, window.cols);
+			int generation = startGeneration + (int)e.GetGeneration();
+			PrintCells(generation - 1);
+			if (cycles.Add(generation, e.GetHash())) {
+				System.out.println("Cells repeat every " + cycles.GetPeriod() + " generations from generation " + cycles.GetStart());
+				break;
 			}
 		}
+	}
+
+
 
-		return subCells;
+	// Shows the tile each worker has, and the workers it gets its halo from.
+	public static void ShowTiles() throws IOException
+	{
+		System.out.println("Space split into " + partition);
+		for (MasterConnection w: masterConnections.GetLiveConnections())
+		{
+			TreeSet<Integer> from = new TreeSet<>();
+			for (HaloPiece p: pieces)
+			{
+				if (p.to == w.GetID()) from.add(p.from);
+			}
+			int[] tile = partition.GetTile(w.GetID());
+			System.out.println("Worker " + w.GetID() + " has " + tile[2] + " x " + tile[3] + " cells at " + tile[0] + "," + tile[1] + ", neighbours " + from);
+		}
 	}
 
 
 
-	// Gets the topology of the worker pattern, then
-	// finds the worker in direction d from the worker with workerID.
-	public static MasterConnection GetNeighbour(int workers, int workerID, Direction d)
+	// Splits the space between the workers as p says, and works out the
+	// pieces of halo they send each other.
+	public static void SetPartition(Partition p)
 	{
-		int rows = GameOfLifeUtils.GetWorkerPatternRows(workers);
-		int cols = GameOfLifeUtils.GetWorkerPatternCols(workers);
-		int workerRow = (GameOfLifeUtils.GetWorkerRow(workers, workerID) + d.rows);
-		int workerCol = (GameOfLifeUtils.GetWorkerCol(workers, workerID) + d.cols);
+		partition = p;
+		pieces = p.GetPieces(GetHaloDepth());
+	}
 
-		if (workerRow < 0) workerRow += rows;
-		else workerRow %= rows;
-		if (workerCol < 0) workerCol += cols;
-		else workerCol %= cols;
 
-		ArrayList<MasterConnection> liveConnections = masterConnections.GetLiveConnections();
-		for (MasterConnection w: liveConnections)
+
+	// Gets the worker with the tile numbered id.
+	public static MasterConnection GetWorker(int id) throws IOException
+	{
+		for (MasterConnection w: masterConnections.GetLiveConnections())
 		{
-			synchronized(w) {
-				if ((workerRow == GameOfLifeUtils.GetWorkerRow(liveConnections.size(), w.GetID())) &&
-					workerCol == GameOfLifeUtils.GetWorkerCol(liveConnections.size(), w.GetID())) return w;
-			}
+			if (w.GetID() == id) return w;
 		}
-		return null;
+		throw new IOException("No worker with tile " + id);
+	}
+
+
+
+	// How deep a halo workers keep around their cells, i.e. how many
+	// generations they go between exchanging boundaries. It can be no
+	// deeper than the thinnest tile.
+	public static int GetHaloDepth()
+	{
+		return Math.max(1, Math.min(haloDepth, partition.GetMinSpan()));
+	}
+
+
+
+	// Generates a subset of cells and gives them to the worker.
+	public static CellGrid GenerateWorkerCells(int workerID)
+	{	
+		int[] tile = partition.GetTile(workerID);
+		return currentCells.Snapshot(spaceRow + tile[0], spaceCol + tile[1], tile[2], tile[3]);
+	}
+
+
+
+	// Sends every worker a heartbeat every GameOfLifeUtils.HEARTBEAT ms, so
+	// they know the master is still there while it's busy with something
+	// else (see Worker.StartMasterThreads).
+	public static void StartHeartbeat()
+	{
+		Thread heartbeat = new Thread() {
+			public void run() {
+				while (true) {
+					for (MasterConnection w: masterConnections.GetAllConnections())
+						w.SendHeartbeat();
+					try { Thread.sleep(GameOfLifeUtils.HEARTBEAT); }
+					catch (InterruptedException e) { return; }
+				}
+			}
+		};
+		heartbeat.setDaemon(true);
+		heartbeat.start();
 	}
 
 
 
 	public static void CloseChannels() throws IOException
 	{
-		for (MasterConnection w: masterConnections.GetLiveConnections())
+		if (workerThreads != null) workerThreads.shutdown();
+		if (checkpointThread != null) {
+			checkpointThread.shutdown();
+			try {
+				checkpointThread.awaitTermination(GameOfLifeUtils.TIMEOUT, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted waiting for the last checkpoint");
+			}
+		}
+		for (MasterConnection w: masterConnections.GetAllConnections())
 			w.CloseChannels();
 		server.close();		
 	}
 
 
 
+	// With -Dgol.timing=true, prints how long the run took and how many
+	// generations it got through, then the time taken by each phase (see
+	// Metrics).
+	public static void PrintTiming(long nanos)
+	{
+		if (!GameOfLifeUtils.TIMING) return;
+		System.out.println("timing run " + nanos + " " + (reached - startGeneration) + " " + currentCells.rows + " " + currentCells.cols);
+		metrics.PrintTiming();
+	}
+
+
+
+	// Waits for the renderer to print the frames it still has, and writes
+	// out the rest of the run log.
+	public static void CloseOutput()
+	{
+		try {
+			if (renderer != null) renderer.Close();
+			if (runLog != null) runLog.Close();
+		} catch (IOException e) {
+			System.err.println(e);
+		}
+	}
+
+
+
 	public static void main(String[] args)
 	{
 		port = Integer.parseInt(args[0]);
@@ -183,22 +792,46 @@ public class Master {
 		patternFile = args[2];
 		workers = Integer.parseInt(args[3]);
 		
-		Cell[][] pattern = GameOfLifeUtils.LoadPattern(patternFile);
-		GameOfLifeUtils.PrintCells(pattern);
-		currentCells = GameOfLifeUtils.GetGameOfLifeSpace(workers, 20, pattern);
-
 		try {
+			renderer = new FrameRenderer(System.getProperty("gol.render", "all"), System.out);
+			metrics.Start();
+			if (!resumeFile.equals("")) Resume();
+			else {
+				CellGrid pattern = GameOfLifeUtils.LoadPattern(patternFile);
+				if (!renderer.IsOff()) GameOfLifeUtils.PrintCells(pattern);
+				if (spaceRows <= 0) spaceRows = Math.max(1, GameOfLifeUtils.GetWorkerPatternRows(workers)) * tileSize;
+				if (spaceCols <= 0) spaceCols = Math.max(1, GameOfLifeUtils.GetWorkerPatternCols(workers)) * tileSize;
+				currentCells = GameOfLifeUtils.GetGameOfLifeSpace(spaceRows, spaceCols, pattern);
+				minRows = currentCells.rows;
+				minCols = currentCells.cols;
+			}
+			if (!logFile.equals("")) {
+				runLog = new RunLog(logFile, !unbounded, currentCells.rows, currentCells.cols, logKeyframes);
+			}
+
+			if (!engine.equals("")) {
+				RunLocally();
+				return;
+			}
+
 			server = new ServerSocket(port);
-			masterConnections = new MasterConnectionHandler(server);
+			masterConnections = new MasterConnectionHandler(server, workers);
 			masterConnections.start();
+			StartHeartbeat();
 
 			SetupWorkers();
 			SendCells();
-			GameOfLifeLoop();
+			long start = System.nanoTime();
+			if (reportEvery > 0) FreeRunLoop();
+			else GameOfLifeLoop();
+			PrintTiming(System.nanoTime() - start);
 			CloseChannels();
 		} catch (IOException e)
 		{
 			System.err.println(e);
+		} finally {
+			CloseOutput();
+			metrics.Stop();
 		}
 	}
 }
@@ -3,8 +3,16 @@
 // Worker connection contains the socket used to connect between the
 // master and each worker. The master communicates with connected
 // workers through this class.
+//
+// Reads skip the worker's heartbeats, and time out if the worker sends
+// nothing, heartbeats included, for GameOfLifeUtils.DEAD_AFTER seconds.
+// A worker that times out or disconnects is failed (see Master.Fail).
+//
+// The bytes sent and received, and the time each GetCells takes, are
+// kept in the master's Metrics under the worker's address.
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
 
 
@@ -14,10 +22,25 @@ public class MasterConnection extends Thread
 	private Socket workerChannel = null;
 	private PrintWriter out = null;
 	private BufferedReader in = null;
-	private int id = 0;
+	private volatile int id = 0;
 	private int workerPort = 0;
+	private int originRow = 0;
+	private int originCol = 0;
+	private int tileRows = 0;
+	private int tileCols = 0;
 	private String workerHostAddress = "";
-	private boolean isReady = false;
+	private long stepNanos = 0;
+	private int steps = 0;
+	private long population = 0;
+	private long hash = 0L;
+	private volatile boolean failed = false;
+	private int recoversSent = 0;
+	private int recoveries = 0;
+	private int resumed = 0;
+	private volatile boolean isReady = false;
+	private CountDownLatch ready = new CountDownLatch(1);
+	private LinkCounter link = new LinkCounter();
+	private Histogram cellTimes = new Histogram();
 	
 
 
@@ -32,11 +55,14 @@ public class MasterConnection extends Thread
 	// Set up the channel between worker and master.
 	public void EstablishChannels() throws IOException
 	{
-		out = new PrintWriter(workerChannel.getOutputStream(), true);
-		in = new BufferedReader(new InputStreamReader(workerChannel.getInputStream()));
-		if (in.readLine().equals("worker")) {
+		out = new PrintWriter(link.Count(workerChannel.getOutputStream()), true);
+		in = new BufferedReader(new InputStreamReader(link.Count(workerChannel.getInputStream())));
+		workerChannel.setSoTimeout((int)(GameOfLifeUtils.DEAD_AFTER * 1000));
+		if ("worker".equals(in.readLine())) {
 			workerPort = Integer.parseInt(in.readLine());
 			workerHostAddress = in.readLine();
+			Master.metrics.AddLink("worker " + workerHostAddress + ":" + workerPort, link);
+			cellTimes = Master.metrics.GetPhase("getCells " + workerHostAddress + ":" + workerPort);
 		}
 		isReady = true;
 	}
@@ -44,64 +70,301 @@ public class MasterConnection extends Thread
 
 
 	// Cnce worker is ready, sends cells allocated to the worker, 
-	// and information about neighbouring workers.
-	public void SendWorkInformation(Cell[][] cells) throws IOException
+	// and information about neighbouring workers. rowOffset/colOffset give
+	// the position of the worker's cells in the whole game space, and
+	// generation the generation they are at.
+	public void SendWorkInformation(CellGrid cells, int rowOffset, int colOffset, int generation) throws IOException
 	{
 		String input = "";
-
-		while(( input = in.readLine()) != null) {
-			if (input.equals("neighbours")) {
-				while(Master.GetPossibleNeighbours(this) < 8);
-				for (Direction d: Direction.values()) {
-					MasterConnection n = Master.GetNeighbour(this, d);
-					if (n == null) out.println("NULL");
-					else out.println(d + ", " + n.GetAddress());
+		originRow = rowOffset;
+		originCol = colOffset;
+		tileRows = cells.rows;
+		tileCols = cells.cols;
+		ResetLoad();
+
+		while(( input = ReadLine()) != null) {
+			if (input.equals("pieces")) {
+				Master.masterConnections.AwaitLiveConnections();
+				for (HaloPiece p: Master.pieces)
+				{
+					if (p.from == id) out.println("send " + Master.GetWorker(p.to).GetHostAndPort() + " " + p);
+					if (p.to == id) out.println("receive " + Master.GetWorker(p.from).GetHostAndPort() + " " + p);
 				}
+				for (int[] region: Master.partition.GetClearRegions(id, Master.GetHaloDepth()))
+					out.println("clear " + HaloPiece.RegionString(region));
 				out.println("done");
 			} else if (input.equals("cells")) {
-				GameOfLifeUtils.PrintCells(cells, out);
+				GameOfLifeUtils.PrintLiveCells(cells, out, rowOffset, colOffset);
 				out.println("done");
 				break;
 			} else if (input.equals("rows")) {
-				out.println(cells.length);
+				out.println(cells.rows);
 			} else if (input.equals("cols")) {
-				out.println(cells[0].length);
+				out.println(cells.cols);
+			} else if (input.equals("origin")) {
+				out.println(rowOffset + "," + colOffset);
+			} else if (input.equals("halo")) {
+				out.println(Master.GetHaloDepth());
+			} else if (input.equals("generation")) {
+				out.println(generation);
 			}
 		}
 	}
 
 
 
-	// Once the worker is ready send it a "next state" heart beat.
-	public void SetNextState() throws IOException
+	// Once the worker is ready send it a "next state" heart beat. If full is
+	// set the worker is asked to send back all of its cells, rather than
+	// just those that changed.
+	public void SetNextState(boolean full) throws IOException
+	{
+		String input = ReadLine();
+		while (!input.equals("ready")) input = ReadLine();
+		out.println(full ? "nextStateFull" : "nextState");
+	}
+
+
+
+	// Once the worker is ready, tells it that its tile is about to move and
+	// waits for it to drain the boundaries it holds for the old one. The
+	// new tile is then sent with SendWorkInformation.
+	public void StartRetile() throws IOException
+	{
+		String input = ReadLine();
+		while (!input.equals("ready")) input = ReadLine();
+		out.println("tile");
+		input = ReadLine();
+		if (!input.equals("drained")) throw new IOException("Expected worker " + id + " to drain its boundaries, got: " + input);
+	}
+
+
+
+	// Once the worker is ready, sets it running freely for a number of
+	// generations, reporting every reportEvery generations (see Worker.Run).
+	public void Run(int generations, int reportEvery) throws IOException
+	{
+		String input = ReadLine();
+		while (!input.equals("ready")) input = ReadLine();
+		out.println("run " + generations + " " + reportEvery);
+	}
+
+
+
+	// Gets a report from a free running worker into the game space, and
+	// returns the generation it was taken at.
+	public int GetReport(SparseGrid cells) throws IOException
+	{
+		String input = ReadLine();
+		if (!input.startsWith("report ")) throw new IOException("Expected a report from worker " + id + ", got: " + input);
+		int generation = Integer.parseInt(input.substring("report ".length()));
+		GetCells(cells);
+		return generation;
+	}
+
+
+
+	// Answers a free running worker's report.
+	public void SendReply(boolean stop)
 	{
-		String input = in.readLine();
-		while (!input.equals("ready")) input = in.readLine();
-		out.println("nextState");
+		out.println(stop ? "stop" : "continue");
 	}
 
 
 
-	// Gets cells from the worker.
-	public ArrayList<Cell> GetCells() throws IOException
+	// Gets cells from the worker and puts them into the game space. The
+	// worker either sends all its cells, or a delta of the 64 cell words
+	// that have changed since it last reported, then how long it spent
+	// stepping them (see Worker.SendCells).
+	//
+	// Several workers may report at once, so the whole report is read
+	// before the game space is locked to apply it.
+	public void GetCells(SparseGrid cells) throws IOException
 	{
-		ArrayList<Cell> list = new ArrayList();
-		String input = in.readLine();
+		long start = System.nanoTime();
+		ArrayList<Cell> list = new ArrayList<>();
+		ArrayList<long[]> words = new ArrayList<>();
+		String input = ReadLine();
 		if (input.equals("cells")) {
 			while(true) {
-				input = in.readLine();
+				input = ReadLine();
 				if (input.equals("done")) break;
-				Cell tmp = new Cell(input);
-				list.add(tmp);
+				list.add(new Cell(input));
+			}
+		} else if (input.equals("delta")) {
+			while(true) {
+				input = ReadLine();
+				if (input.equals("done")) break;
+				StringTokenizer st = new StringTokenizer(input, ",");
+				long row = Long.parseLong(st.nextToken());
+				long col = Long.parseLong(st.nextToken()) << 6;
+				words.add(new long[] { row, col, Long.parseUnsignedLong(st.nextToken(), 16) });
 			}
 		}
-		return list;
+		GetLoad();
+
+		synchronized(cells) {
+			for (Cell c: list) cells.Set(c.row, c.col, c.hasLife);
+			for (long[] w: words) {
+				int col = (int)w[1];
+				cells.SetWord(originRow + (int)w[0], originCol + col, w[2], Math.min(64, tileCols - col));
+			}
+		}
+		cellTimes.Record(System.nanoTime() - start);
+	}
+
+
+
+	// The next line from the worker, other than a heartbeat. Fails the
+	// worker if there isn't one. Throws if the worker says it is
+	// recovering, which it only does when asked to (see Master.Fail), so
+	// whatever we were waiting for isn't coming.
+	private String ReadLine() throws IOException
+	{
+		while (true) {
+			String line = null;
+			try {
+				line = in.readLine();
+			} catch (IOException e) {
+				throw Master.Fail(this, e.toString());
+			}
+			if (line == null) throw Master.Fail(this, "disconnected");
+			if (line.equals("alive")) continue;
+			if (line.equals("recovering")) {
+				recoveries++;
+				throw new WorkerFailedException("Worker " + id + " is recovering");
+			}
+			return line;
+		}
+	}
+
+
+
+	// Asks the worker to drop what it's doing, as another worker has
+	// failed (see Worker.Recover).
+	public synchronized void SendRecover()
+	{
+		recoversSent++;
+		out.println("recover");
+	}
+
+
+
+	// Waits for the worker to answer every request to recover, then tells
+	// it to "resume". Anything it reads before then (e.g. a "nextState" sent
+	// just after the "recover") is from before the failure.
+	public void AwaitRecovering() throws IOException
+	{
+		while (GetRecoversSent() > recoveries) {
+			try {
+				ReadLine();
+			} catch (WorkerFailedException e) {
+				if (failed) throw e;
+			}
+		}
+		if (resumed < recoveries) {
+			resumed = recoveries;
+			out.println("resume");
+		}
+	}
+
+
+
+	private synchronized int GetRecoversSent()
+	{
+		return recoversSent;
+	}
+
+
+
+	public void SendHeartbeat()
+	{
+		if (isReady && !failed) out.println("alive");
+	}
+
+
+
+	public boolean HasFailed()
+	{
+		return failed;
+	}
+
+
+
+	public void SetFailed()
+	{
+		failed = true;
+	}
+
+
+
+	// Gives the worker a different tile, e.g. a standby taking over the
+	// tile of one that failed.
+	public void SetID(int id)
+	{
+		this.id = id;
+	}
+
+
+
+	// Reads the "load" line that ends a report.
+	private void GetLoad() throws IOException
+	{
+		String input = ReadLine();
+		if (!input.startsWith("load ")) throw new IOException("Expected a load from worker " + id + ", got: " + input);
+		StringTokenizer st = new StringTokenizer(input, " ");
+		st.nextToken();
+		stepNanos += Long.parseLong(st.nextToken());
+		steps += Integer.parseInt(st.nextToken());
+		population = Long.parseLong(st.nextToken());
+		hash = Long.parseUnsignedLong(st.nextToken(), 16);
+	}
+
+
+
+	// Average time the worker has spent stepping its tile each generation
+	// since it was last given a tile, in nanoseconds.
+	public double GetStepTime()
+	{
+		return (steps == 0) ? 0 : (double)stepNanos / steps;
+	}
+
+
+
+	// Generations the step time is averaged over.
+	public int GetSteps()
+	{
+		return steps;
+	}
+
+
+
+	// Live cells in the worker's tile at its last report.
+	public long GetPopulation()
+	{
+		return population;
+	}
+
+
+
+	// Hash of the worker's tile at its last report (see CycleDetector).
+	public long GetHash()
+	{
+		return hash;
+	}
+
+
+
+	public void ResetLoad()
+	{
+		stepNanos = 0;
+		steps = 0;
 	}
 
 
 
 	public void CloseChannels() throws IOException
 	{
+		if (out == null) return;
 		out.println("GameOver");
 		out.close();
 		in.close();
@@ -124,6 +387,16 @@ public class MasterConnection extends Thread
 
 
 
+	// Waits for the worker to introduce itself. Returns false if it
+	// disconnected instead.
+	public boolean AwaitReady() throws IOException
+	{
+		GameOfLifeUtils.Await(ready, "worker at " + workerChannel.getRemoteSocketAddress() + " to introduce itself");
+		return isReady;
+	}
+
+
+
 	public String GetAddress()
 	{
 		return workerHostAddress + ", " + workerPort;
@@ -131,6 +404,14 @@ public class MasterConnection extends Thread
 
 
 
+	// As GetAddress, but space separated.
+	public String GetHostAndPort()
+	{
+		return workerHostAddress + " " + workerPort;
+	}
+
+
+
 	public int GetID()
 	{
 		return this.id;
@@ -143,6 +424,8 @@ public class MasterConnection extends Thread
 			EstablishChannels();
 		} catch (IOException e) {
 			System.err.println(e);
+		} finally {
+			ready.countDown();
 		}
 	}
 }
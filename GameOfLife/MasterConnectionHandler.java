@@ -1,20 +1,33 @@
 // Copyright David Petrie 2008
 //
 // Handler for incoming connections to the master.
+//
+// Workers that connect once all the expected workers are live are kept
+// as standbys, ready to take over the tile of a worker that fails. Each
+// of them introduces itself on a thread of its own, so one that never
+// does (or something that isn't a worker at all) can't hold up the
+// connections after it.
+//
+// A connection is only given an ID once the worker has introduced
+// itself, so the IDs of the live workers run from 0 without gaps.
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 public class MasterConnectionHandler extends Thread
 {
-	public static Stack<MasterConnection> newConnections = new Stack();
+	public static LinkedBlockingQueue<MasterConnection> newConnections = new LinkedBlockingQueue<>();
 	public static ArrayList<MasterConnection> liveConnections = new ArrayList();
+	public static ArrayList<MasterConnection> standby = new ArrayList<>();
+	public static CountDownLatch allLive = null;
 	public static ServerSocket server = null;
 	public static int connectionCount = 0;
 
-	public MasterConnectionHandler(ServerSocket server)
+	public MasterConnectionHandler(ServerSocket server, int workers)
 	{
 		this.server = server;		
+		this.allLive = new CountDownLatch(workers);
 	}
 
 
@@ -24,28 +37,127 @@ public class MasterConnectionHandler extends Thread
 	{
 		try {
 			while(true) {
-				Socket worker = server.accept();
-				MasterConnection w = new MasterConnection(worker, connectionCount++);
-				newConnections.push(w);
+				Socket worker = null;
+				try {
+					worker = server.accept();
+				} catch (IOException e) {
+					if (server.isClosed()) return;
+					System.err.println(e);
+					continue;
+				}
+				MasterConnection w = new MasterConnection(worker, -1);
+				if (allLive.getCount() == 0) StartStandby(w);
+				else newConnections.put(w);
 			}
-		} catch (IOException e) {
+		} catch (InterruptedException e) {
 			System.err.println(e);
 		}
 	}
 
 
 
-	public static void StartNewConnections()
+	// The ID of the next worker admitted.
+	private static synchronized int NextID()
+	{
+		return connectionCount++;
+	}
+
+
+
+	// Waits for "count" workers to connect, and starts each of them
+	// as it arrives.
+	public static void StartNewConnections(int count) throws IOException
 	{
 		MasterConnection tmp = null;
 		
-		while(!newConnections.empty())
+		while(liveConnections.size() < count)
 		{
-			tmp = newConnections.pop();
+			try {
+				tmp = newConnections.poll(GameOfLifeUtils.TIMEOUT, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted waiting for workers to connect");
+			}
+			if (tmp == null) throw new IOException("Timed out waiting for workers to connect");
 			tmp.start();
-			while(tmp.isReady() == false);
-			liveConnections.add(tmp);
+			if (tmp.AwaitReady()) {
+				tmp.SetID(NextID());
+				synchronized(liveConnections) {
+					liveConnections.add(tmp);
+				}
+				allLive.countDown();
+			}
+		}
+
+		// anyone who turned up early stands by
+		while ((tmp = newConnections.poll()) != null) StartStandby(tmp);
+	}
+
+
+
+	// Starts a connection from a worker that isn't needed yet, and waits
+	// on a thread of its own for the worker to introduce itself before
+	// standing it by.
+	private static void StartStandby(final MasterConnection w)
+	{
+		Thread admit = new Thread() {
+			public void run() {
+				try {
+					AddStandby(w);
+				} catch (IOException e) {
+					System.err.println(e);
+				}
+			}
+		};
+		admit.setDaemon(true);
+		admit.start();
+	}
+
+
+
+	private static void AddStandby(MasterConnection w) throws IOException
+	{
+		w.start();
+		if (!w.AwaitReady()) return;
+		w.SetID(NextID());
+		synchronized(standby) {
+			standby.add(w);
+		}
+		System.out.println("Worker " + w.GetAddress() + " is standing by");
+	}
+
+
+
+	// Takes a standby worker to replace one that failed, or returns null if
+	// there isn't one.
+	public static MasterConnection TakeStandby()
+	{
+		synchronized(standby) {
+			if (standby.isEmpty()) return null;
+			return standby.remove(0);
+		}
+	}
+
+
+
+	// Every connection to a worker, standbys included.
+	public static ArrayList<MasterConnection> GetAllConnections()
+	{
+		ArrayList<MasterConnection> all = new ArrayList<>();
+		synchronized(liveConnections) {
+			all.addAll(liveConnections);
+		}
+		synchronized(standby) {
+			all.addAll(standby);
 		}
+		return all;
+	}
+
+
+
+	// Blocks until every expected worker is live.
+	public static void AwaitLiveConnections() throws IOException
+	{
+		GameOfLifeUtils.Await(allLive, "workers to connect");
 	}
 
 
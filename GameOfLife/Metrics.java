@@ -0,0 +1,265 @@
+// Copyright David Petrie 2008
+//
+// How long the phases of each generation take in a master or worker, and
+// how many bytes go over each of its connections, while it runs.
+//
+// Each phase is a Histogram, recorded by whoever times the phase, and
+// each connection a LinkCounter. They can be looked at three ways:
+//
+// - Over JMX, as the attributes of an MBean named gol:type=Metrics,
+//   name=<process> (e.g. with jconsole). Each phase has <phase>.count,
+//   .mean, .max, .p50, .p90 and .p99 attributes, in nanoseconds, and each
+//   link <link>.sent and .received, in bytes.
+// - Over HTTP, as text at /metrics in the Prometheus format, when the
+//   process is started with -Dgol.metricsPort=<port> (0 for any free
+//   port; the process prints where it is listening).
+// - As "timing" lines printed at the end of a run, with -Dgol.timing=true
+//   (see GameOfLifeUtils.TIMING).
+//
+// The MBean's attributes are made up afresh each time it is asked for
+// them, so phases and links added during the run show up.
+import java.io.*;
+import java.lang.management.*;
+import java.net.*;
+import java.util.*;
+import javax.management.*;
+import com.sun.net.httpserver.*;
+
+public class Metrics implements DynamicMBean
+{
+	public static final int HTTP_PORT = Integer.getInteger("gol.metricsPort", -1);
+	public static final double[] PERCENTILES = { 50, 90, 99 };
+
+	private final String process;
+	private final LinkedHashMap<String, Histogram> phases = new LinkedHashMap<>();
+	private final LinkedHashMap<String, LinkCounter> links = new LinkedHashMap<>();
+	private ObjectName name = null;
+	private HttpServer http = null;
+
+
+
+	// "process" names this master or worker in the MBean's name and the
+	// HTTP metrics.
+	public Metrics(String process)
+	{
+		this.process = process;
+	}
+
+
+
+	// The histogram for a phase, added the first time it is asked for.
+	public synchronized Histogram GetPhase(String phase)
+	{
+		Histogram h = phases.get(phase);
+		if (h == null) {
+			h = new Histogram();
+			phases.put(phase, h);
+		}
+		return h;
+	}
+
+
+
+	// The counter for a link, added the first time it is asked for.
+	public synchronized LinkCounter GetLink(String link)
+	{
+		LinkCounter c = links.get(link);
+		if (c == null) {
+			c = new LinkCounter();
+			links.put(link, c);
+		}
+		return c;
+	}
+
+
+
+	// Adds a counter that has already been counting under a name, or
+	// replaces the one there was.
+	public synchronized void AddLink(String link, LinkCounter c)
+	{
+		links.put(link, c);
+	}
+
+
+
+	// Registers the MBean, and starts the HTTP endpoint if there is to be
+	// one.
+	public void Start() throws IOException
+	{
+		try {
+			name = new ObjectName("gol:type=Metrics,name=" + ObjectName.quote(process));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+		} catch (JMException e) {
+			throw new IOException("Couldn't register the metrics MBean: " + e);
+		}
+
+		if (HTTP_PORT < 0) return;
+		http = HttpServer.create(new InetSocketAddress(HTTP_PORT), 0);
+		http.createContext("/metrics", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				byte[] body = GetText().getBytes("UTF-8");
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+			}
+		});
+		http.start();
+		System.out.println("Metrics for " + process + " at http://localhost:" + http.getAddress().getPort() + "/metrics");
+	}
+
+
+
+	// Stops the HTTP endpoint, whose thread would otherwise keep the
+	// process going, and unregisters the MBean.
+	public void Stop()
+	{
+		if (http != null) http.stop(0);
+		http = null;
+		try {
+			if (name != null) ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch (JMException e) {}
+		name = null;
+	}
+
+
+
+	// With -Dgol.timing=true, prints each phase's histogram as a line of
+	//
+	//   timing <phase> <histogram>
+	public synchronized void PrintTiming()
+	{
+		if (!GameOfLifeUtils.TIMING) return;
+		for (Map.Entry<String, Histogram> e: phases.entrySet())
+			System.out.println("timing " + e.getKey() + " " + e.getValue());
+	}
+
+
+
+	// The metrics in the Prometheus text format.
+	public synchronized String GetText()
+	{
+		StringBuilder s = new StringBuilder();
+		String p = "process=\"" + Escape(process) + "\"";
+		s.append("# TYPE gol_phase_nanos summary\n");
+		for (Map.Entry<String, Histogram> e: phases.entrySet())
+		{
+			String labels = p + ",phase=\"" + Escape(e.getKey()) + "\"";
+			Histogram h = e.getValue();
+			for (double percent: PERCENTILES)
+				s.append("gol_phase_nanos{").append(labels).append(",quantile=\"").append(percent / 100).append("\"} ").append(h.GetPercentile(percent)).append('\n');
+			s.append("gol_phase_nanos_sum{").append(labels).append("} ").append(h.GetSum()).append('\n');
+			s.append("gol_phase_nanos_count{").append(labels).append("} ").append(h.GetCount()).append('\n');
+		}
+		s.append("# TYPE gol_phase_nanos_max gauge\n");
+		for (Map.Entry<String, Histogram> e: phases.entrySet())
+			s.append("gol_phase_nanos_max{").append(p).append(",phase=\"").append(Escape(e.getKey())).append("\"} ").append(e.getValue().GetMax()).append('\n');
+		s.append("# TYPE gol_link_sent_bytes counter\n");
+		for (Map.Entry<String, LinkCounter> e: links.entrySet())
+			s.append("gol_link_sent_bytes{").append(p).append(",link=\"").append(Escape(e.getKey())).append("\"} ").append(e.getValue().GetSent()).append('\n');
+		s.append("# TYPE gol_link_received_bytes counter\n");
+		for (Map.Entry<String, LinkCounter> e: links.entrySet())
+			s.append("gol_link_received_bytes{").append(p).append(",link=\"").append(Escape(e.getKey())).append("\"} ").append(e.getValue().GetReceived()).append('\n');
+		return s.toString();
+	}
+
+
+
+	private static String Escape(String label)
+	{
+		return label.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+
+
+
+	// The MBean's attributes: <phase>.<stat> and <link>.<sent|received>.
+	public synchronized Object getAttribute(String attribute) throws AttributeNotFoundException
+	{
+		int dot = attribute.lastIndexOf('.');
+		if (dot > 0) {
+			String what = attribute.substring(0, dot);
+			String stat = attribute.substring(dot + 1);
+			Histogram h = phases.get(what);
+			if (h != null) {
+				if (stat.equals("count")) return h.GetCount();
+				if (stat.equals("mean")) return h.GetMean();
+				if (stat.equals("max")) return h.GetMax();
+				for (double percent: PERCENTILES)
+				{
+					if (stat.equals("p" + (int)percent)) return h.GetPercentile(percent);
+				}
+			}
+			LinkCounter c = links.get(what);
+			if (c != null) {
+				if (stat.equals("sent")) return c.GetSent();
+				if (stat.equals("received")) return c.GetReceived();
+			}
+		}
+		throw new AttributeNotFoundException(attribute);
+	}
+
+
+
+	public synchronized AttributeList getAttributes(String[] attributes)
+	{
+		AttributeList list = new AttributeList();
+		for (String a: attributes)
+		{
+			try {
+				list.add(new Attribute(a, getAttribute(a)));
+			} catch (AttributeNotFoundException e) {}
+		}
+		return list;
+	}
+
+
+
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException
+	{
+		throw new AttributeNotFoundException("Metrics are read only: " + attribute.getName());
+	}
+
+
+
+	public AttributeList setAttributes(AttributeList attributes)
+	{
+		return new AttributeList();
+	}
+
+
+
+	public Object invoke(String action, Object[] params, String[] signature) throws ReflectionException
+	{
+		throw new ReflectionException(new NoSuchMethodException(action));
+	}
+
+
+
+	public synchronized MBeanInfo getMBeanInfo()
+	{
+		ArrayList<MBeanAttributeInfo> attributes = new ArrayList<>();
+		for (String phase: phases.keySet())
+		{
+			attributes.add(Attribute(phase + ".count", "long", "Times the phase has been timed"));
+			attributes.add(Attribute(phase + ".mean", "double", "Mean time taken, in ns"));
+			attributes.add(Attribute(phase + ".max", "long", "Longest time taken, in ns"));
+			for (double percent: PERCENTILES)
+				attributes.add(Attribute(phase + ".p" + (int)percent, "long", (int)percent + "th percentile of the time taken, in ns"));
+		}
+		for (String link: links.keySet())
+		{
+			attributes.add(Attribute(link + ".sent", "long", "Bytes sent"));
+			attributes.add(Attribute(link + ".received", "long", "Bytes received"));
+		}
+		return new MBeanInfo(getClass().getName(), "Phase times and link traffic of " + process,
+			attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+	}
+
+
+
+	private static MBeanAttributeInfo Attribute(String name, String type, String description)
+	{
+		return new MBeanAttributeInfo(name, type, description, true, false, false);
+	}
+}
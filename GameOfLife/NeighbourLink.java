@@ -0,0 +1,83 @@
+// Copyright David Petrie 2008
+//
+// Outbound connection from a worker to one of its neighbours, used to
+// push the pieces of the neighbour's halo that this worker's tile covers
+// (see HaloPiece) each time the halo is refreshed.
+//
+// The link keeps one set of streams for the life of the socket and
+// agrees on binary or text framing with the neighbour when it is
+// opened (see HaloFrame).
+import java.net.*;
+import java.util.*;
+import java.io.*;
+
+
+
+public class NeighbourLink
+{
+	private Socket sock = null;
+	private boolean binary = false;
+	private DataOutputStream out = null;
+	private PrintWriter textOut = null;
+	private LinkCounter counter = null;
+
+
+
+	// "counter" counts the bytes that go over the link.
+	public NeighbourLink(Socket sock, LinkCounter counter)
+	{
+		this.sock = sock;
+		this.counter = counter;
+	}
+
+
+
+	// Asks the neighbour for binary framing if wantBinary is set, and
+	// falls back to text if it will only talk text.
+	public void Negotiate(boolean wantBinary) throws IOException
+	{
+		InputStream in = counter.Count(sock.getInputStream());
+		out = new DataOutputStream(new BufferedOutputStream(counter.Count(sock.getOutputStream())));
+		if (wantBinary) out.writeBytes("halo binary " + HaloFrame.VERSION + "\n");
+		else out.writeBytes("halo text\n");
+		out.flush();
+
+		String reply = HaloFrame.ReadLine(in);
+		binary = wantBinary && ("ok binary " + HaloFrame.VERSION).equals(reply);
+		if (!binary) textOut = new PrintWriter(out, true);
+	}
+
+
+
+	// Pushes a boundary to the neighbour. In text mode the cells are sent
+	// as row,col,hasLife lines, so "cells" must hold the same cells as the
+	// frame; in binary mode it is not used.
+	public void SendBoundary(HaloFrame f, ArrayList<Cell> cells) throws IOException
+	{
+		if (binary) {
+			f.Write(out);
+			out.flush();
+			return;
+		}
+
+		textOut.println("boundary");
+		textOut.println(f.piece);
+		textOut.println(f.generation);
+		for (Cell c : cells) textOut.println(c.toCSV());
+		textOut.println("done");
+	}
+
+
+
+	public boolean isBinary()
+	{
+		return binary;
+	}
+
+
+
+	public void Close() throws IOException
+	{
+		sock.close();
+	}
+}
@@ -0,0 +1,85 @@
+// Copyright David Petrie 2008
+//
+// Works out the next state of a grid on several threads at once.
+//
+// The grid is split into strips that are stepped on a ForkJoinPool (see
+// ActiveBlocks.Step). Each output word only depends on the input grid, so
+// strips can be written independently and the result is identical to
+// stepping them in order on one thread.
+import java.util.concurrent.*;
+
+public class ParallelStepper
+{
+	private ForkJoinPool pool = null;
+	private int parallelism = 1;
+
+
+
+	public ParallelStepper(int parallelism)
+	{
+		this.parallelism = parallelism;
+		this.pool = new ForkJoinPool(parallelism);
+	}
+
+
+
+	public int GetParallelism()
+	{
+		return parallelism;
+	}
+
+
+
+	// Runs "task" over from (inclusive) to to (exclusive), split into
+	// pieces of at most stripRows that are spread over the pool's threads.
+	// Each piece must only write its own part of the output.
+	public void ForEach(int from, int to, int stripRows, Rows task)
+	{
+		if (to - from <= stripRows) task.Run(from, to);
+		else pool.invoke(new Strip(task, from, to, stripRows));
+	}
+
+
+
+	public void Shutdown()
+	{
+		pool.shutdown();
+	}
+
+
+
+	// Some work over a range of rows.
+	public interface Rows
+	{
+		public void Run(int fromRow, int toRow);
+	}
+
+
+
+	// A block of rows, split in half until it is no bigger than stripRows.
+	private static class Strip extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private Rows task;
+		private int fromRow, toRow, stripRows;
+
+		Strip(Rows task, int fromRow, int toRow, int stripRows)
+		{
+			this.task = task;
+			this.fromRow = fromRow;
+			this.toRow = toRow;
+			this.stripRows = stripRows;
+		}
+
+		protected void compute()
+		{
+			if (toRow - fromRow <= stripRows) {
+				task.Run(fromRow, toRow);
+				return;
+			}
+			int mid = (fromRow + toRow) >>> 1;
+			invokeAll(new Strip(task, fromRow, mid, stripRows), new Strip(task, mid, toRow, stripRows));
+		}
+	}
+}
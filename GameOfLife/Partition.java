@@ -0,0 +1,413 @@
+// Copyright David Petrie 2008
+//
+// Splits the game space into one rectangular tile per worker.
+//
+// The space is cut into bands (of rows, or of columns) and each band is
+// cut across into tiles, so any number of workers can be given tiles of
+// (nearly) the same area without the worker count having to factor into
+// a neat grid: 7 workers get bands of 3, 2 and 2 tiles rather than a
+// 7 x 1 strip. Bands holding more tiles are made deeper to match.
+//
+// Every band count and direction is tried, and the layout with the
+// smallest total tile perimeter wins, since that is what the halos
+// (and so the boundaries sent between workers each generation) grow
+// with.
+//
+// Tiles are numbered band by band, which is the order workers are given
+// them in.
+//
+// Once the run is going, Rebalanced moves the edges of the bands and
+// tiles so that tiles where more is happening get smaller (see
+// Master.Rebalance).
+import java.util.*;
+
+public class Partition
+{
+	public final int rows;
+	public final int cols;
+	public final boolean wrap;
+	private boolean vertical = false;
+	private int[] counts = null;
+	private int[][] tiles = null;
+
+
+
+	// "vertical" means the bands are columns rather than rows, and
+	// counts[b] is how many tiles band b is cut into.
+	private Partition(int rows, int cols, boolean wrap, boolean vertical, int[] counts)
+	{
+		this.rows = rows;
+		this.cols = cols;
+		this.wrap = wrap;
+		this.vertical = vertical;
+		this.counts = counts;
+		int workers = 0;
+		for (int c: counts) workers += c;
+		tiles = new int[workers][];
+	}
+
+
+
+	// A partition with tiles already worked out, e.g. read back from a
+	// checkpoint. counts and tiles are as they are kept here.
+	public static Partition Restore(int rows, int cols, boolean wrap, boolean vertical, int[] counts, int[][] tiles)
+	{
+		Partition p = new Partition(rows, cols, wrap, vertical, counts);
+		if (tiles.length != p.tiles.length) throw new IllegalArgumentException("Expected " + p.tiles.length + " tiles, got " + tiles.length);
+		for (int id = 0; id < tiles.length; id++) p.tiles[id] = tiles[id].clone();
+		return p;
+	}
+
+
+
+	// Splits a rows x cols space between workers with equal sized tiles, in
+	// the layout with the smallest total perimeter. "wrap" is whether the
+	// space wraps around at its edges.
+	public static Partition Balanced(int rows, int cols, int workers, boolean wrap)
+	{
+		Partition best = null;
+		long bestCost = 0;
+		for (int bands = 1; bands <= workers; bands++)
+		{
+			for (int v = 0; v < 2; v++)
+			{
+				Partition p = new Partition(rows, cols, wrap, v == 1, BandCounts(workers, bands));
+				p.SplitEvenly();
+				if (!p.IsValid()) continue;
+				long cost = p.GetPerimeter();
+				if (best == null || cost < bestCost) {
+					best = p;
+					bestCost = cost;
+				}
+			}
+		}
+		if (best == null) throw new IllegalArgumentException("Can't split a " + rows + " x " + cols + " space between " + workers + " workers");
+		return best;
+	}
+
+
+
+	// Shares workers out between bands, the first bands getting one more
+	// when they don't divide evenly.
+	private static int[] BandCounts(int workers, int bands)
+	{
+		int[] counts = new int[bands];
+		for (int b = 0; b < bands; b++)
+			counts[b] = workers / bands + ((b < workers % bands) ? 1 : 0);
+		return counts;
+	}
+
+
+
+	// Cuts the bands with depths in proportion to their tile counts, and
+	// each band into tiles of equal width.
+	private void SplitEvenly()
+	{
+		int length = vertical ? cols : rows;
+		int across = vertical ? rows : cols;
+		int workers = tiles.length;
+		int done = 0, id = 0;
+		for (int b = 0; b < counts.length; b++)
+		{
+			int from = (int)((long)length * done / workers);
+			done += counts[b];
+			int to = (int)((long)length * done / workers);
+			for (int t = 0; t < counts[b]; t++, id++)
+			{
+				int start = (int)((long)across * t / counts[b]);
+				int end = (int)((long)across * (t + 1) / counts[b]);
+				SetTile(id, from, to, start, end);
+			}
+		}
+	}
+
+
+
+	// A partition with the same bands, and the same number of tiles in each,
+	// but with the edges moved so that each tile should cost about the same
+	// to step. loads[id] is what tile id has cost lately; it is taken to be
+	// spread evenly over the tile (plus a little for every cell, so empty
+	// parts aren't free). Edges are only moved half way to where the loads
+	// say they should be, so they settle rather than swinging about as the
+	// loads are measured again on the new tiles. No tile is made thinner
+	// than minSpan.
+	//
+	// Returns this partition if the loads are all zero, or the space is too
+	// small to keep every tile minSpan wide.
+	public Partition Rebalanced(double[] loads, int minSpan)
+	{
+		double total = 0;
+		for (double l: loads) total += l;
+		if (total <= 0) return this;
+		double floor = total / ((double)rows * cols) / 20.0;
+
+		int length = vertical ? cols : rows;
+		int across = vertical ? rows : cols;
+		double[] line = new double[length];
+		for (int id = 0; id < tiles.length; id++)
+		{
+			int[] t = Along(tiles[id]);
+			double d = loads[id] / ((double)tiles[id][2] * tiles[id][3]) + floor;
+			for (int i = t[0]; i < t[1]; i++) line[i] += d * (t[3] - t[2]);
+		}
+
+		Partition p = new Partition(rows, cols, wrap, vertical, counts);
+		int[] bands = Cut(line, counts, minSpan, BandEdges());
+		if (bands == null) return this;
+		int first = 0;
+		for (int b = 0; b < counts.length; b++)
+		{
+			double[] cost = new double[across];
+			int[] oldEdges = new int[counts[b] + 1];
+			for (int id = first; id < first + counts[b]; id++)
+				oldEdges[id - first] = Along(tiles[id])[2];
+			oldEdges[counts[b]] = across;
+			for (int id = 0; id < tiles.length; id++)
+			{
+				int[] t = Along(tiles[id]);
+				int overlap = Math.min(t[1], bands[b + 1]) - Math.max(t[0], bands[b]);
+				if (overlap <= 0) continue;
+				double d = loads[id] / ((double)tiles[id][2] * tiles[id][3]) + floor;
+				for (int i = t[2]; i < t[3]; i++) cost[i] += d * overlap;
+			}
+			int[] ones = new int[counts[b]];
+			Arrays.fill(ones, 1);
+			int[] edges = Cut(cost, ones, minSpan, oldEdges);
+			if (edges == null) return this;
+			for (int t = 0; t < counts[b]; t++)
+				p.SetTile(first + t, bands[b], bands[b + 1], edges[t], edges[t + 1]);
+			first += counts[b];
+		}
+		return p;
+	}
+
+
+
+	// Cuts a line of costs into parts, with part i taking weights[i] shares
+	// of the total cost, then moves each edge half way back towards its
+	// place in oldEdges. Returns the edges (starting at 0 and ending at the
+	// length of the line), or null if the line is too short for every part
+	// to be minSpan long.
+	private static int[] Cut(double[] cost, int[] weights, int minSpan, int[] oldEdges)
+	{
+		int n = cost.length;
+		int parts = weights.length;
+		if ((long)parts * minSpan > n) return null;
+		double[] sum = new double[n + 1];
+		for (int i = 0; i < n; i++) sum[i + 1] = sum[i] + cost[i];
+		int shares = 0;
+		for (int w: weights) shares += w;
+
+		int[] edges = new int[parts + 1];
+		edges[parts] = n;
+		int done = 0;
+		for (int j = 1; j < parts; j++)
+		{
+			done += weights[j - 1];
+			double target = sum[n] * done / shares;
+			int lo = edges[j - 1] + minSpan;
+			int hi = n - (parts - j) * minSpan;
+			int e = lo;
+			while (e < hi && sum[e + 1] <= target) e++;
+			if (e < hi && target - sum[e] > sum[e + 1] - target) e++;
+			edges[j] = e;
+		}
+		for (int j = 1; j < parts; j++)
+			edges[j] = (edges[j] + oldEdges[j]) / 2;
+		return edges;
+	}
+
+
+
+	// The edges of the bands, from 0 to the length of the space.
+	private int[] BandEdges()
+	{
+		int[] edges = new int[counts.length + 1];
+		int id = 0;
+		for (int b = 0; b < counts.length; b++)
+		{
+			edges[b] = Along(tiles[id])[0];
+			id += counts[b];
+		}
+		edges[counts.length] = vertical ? cols : rows;
+		return edges;
+	}
+
+
+
+	// A tile as {from, to} along the bands, then {start, end} across them.
+	private int[] Along(int[] t)
+	{
+		if (vertical) return new int[] { t[1], t[1] + t[3], t[0], t[0] + t[2] };
+		return new int[] { t[0], t[0] + t[2], t[1], t[1] + t[3] };
+	}
+
+
+
+	// Whether p puts every tile in the same place as this.
+	public boolean equals(Partition p)
+	{
+		if (p.tiles.length != tiles.length) return false;
+		for (int id = 0; id < tiles.length; id++)
+		{
+			if (!Arrays.equals(p.tiles[id], tiles[id])) return false;
+		}
+		return true;
+	}
+
+
+
+	private void SetTile(int id, int from, int to, int start, int end)
+	{
+		if (vertical) tiles[id] = new int[] { start, from, end - start, to - from };
+		else tiles[id] = new int[] { from, start, to - from, end - start };
+	}
+
+
+
+	private boolean IsValid()
+	{
+		for (int[] t: tiles)
+		{
+			if (t[2] <= 0 || t[3] <= 0) return false;
+		}
+		return true;
+	}
+
+
+
+	// Number of tiles (and workers).
+	public int GetSize()
+	{
+		return tiles.length;
+	}
+
+
+
+	public boolean IsVertical()
+	{
+		return vertical;
+	}
+
+
+
+	// Number of tiles in each band.
+	public int[] GetCounts()
+	{
+		return counts.clone();
+	}
+
+
+
+	// Tile for a worker, as {row, col, rows, cols}, relative to the top left
+	// of the space.
+	public int[] GetTile(int id)
+	{
+		return tiles[id].clone();
+	}
+
+
+
+	// Sum of the tiles' rows and columns.
+	public long GetPerimeter()
+	{
+		long sum = 0;
+		for (int[] t: tiles) sum += t[2] + t[3];
+		return sum;
+	}
+
+
+
+	// Rows or columns in the thinnest tile.
+	public int GetMinSpan()
+	{
+		int min = Integer.MAX_VALUE;
+		for (int[] t: tiles) min = Math.min(min, Math.min(t[2], t[3]));
+		return min;
+	}
+
+
+
+	// Works out the pieces that make up every tile's halo, for a halo
+	// "halo" cells deep (at most as deep as the space is wide and tall).
+	// A piece is the overlap of one tile's halo ring with another tile, or,
+	// where the space wraps, with a copy of a tile (its own included) on
+	// the far side of the space.
+	public ArrayList<HaloPiece> GetPieces(int halo)
+	{
+		ArrayList<HaloPiece> pieces = new ArrayList<>();
+		int[] shifts = wrap ? new int[] { -1, 0, 1 } : new int[] { 0 };
+		for (int to = 0; to < tiles.length; to++)
+		{
+			int[] t = tiles[to];
+			int[] ring = { t[0] - halo, t[1] - halo, t[2] + 2*halo, t[3] + 2*halo };
+			for (int from = 0; from < tiles.length; from++)
+			{
+				for (int dr: shifts)
+				{
+					for (int dc: shifts)
+					{
+						if (from == to && dr == 0 && dc == 0) continue;
+						int[] f = tiles[from];
+						int[] copy = { f[0] + dr * rows, f[1] + dc * cols, f[2], f[3] };
+						int[] overlap = Intersect(ring, copy);
+						if (overlap == null) continue;
+						int[] source = { overlap[0] - copy[0], overlap[1] - copy[1], overlap[2], overlap[3] };
+						int[] target = { overlap[0] - t[0], overlap[1] - t[1], overlap[2], overlap[3] };
+						pieces.add(new HaloPiece(pieces.size(), from, to, source, target));
+					}
+				}
+			}
+		}
+		return pieces;
+	}
+
+
+
+	// The parts of a tile's halo ring that lie outside the space, in tile
+	// coordinates. There are none if the space wraps. Nothing is sent for
+	// these parts, so the worker keeps them clear.
+	public ArrayList<int[]> GetClearRegions(int id, int halo)
+	{
+		ArrayList<int[]> regions = new ArrayList<>();
+		if (wrap) return regions;
+		int[] t = tiles[id];
+		int[] ring = { t[0] - halo, t[1] - halo, t[2] + 2*halo, t[3] + 2*halo };
+		int r0 = ring[0], r1 = ring[0] + ring[2], c0 = ring[1], c1 = ring[1] + ring[3];
+		AddRegion(regions, t, r0, Math.min(r1, 0), c0, c1);
+		AddRegion(regions, t, Math.max(r0, rows), r1, c0, c1);
+		AddRegion(regions, t, Math.max(r0, 0), Math.min(r1, rows), c0, Math.min(c1, 0));
+		AddRegion(regions, t, Math.max(r0, 0), Math.min(r1, rows), Math.max(c0, cols), c1);
+		return regions;
+	}
+
+
+
+	// Adds rows r0 to r1 and columns c0 to c1 of the space, if there are any,
+	// to a list of regions in tile t's coordinates.
+	private static void AddRegion(ArrayList<int[]> regions, int[] t, int r0, int r1, int c0, int c1)
+	{
+		if (r1 <= r0 || c1 <= c0) return;
+		regions.add(new int[] { r0 - t[0], c0 - t[1], r1 - r0, c1 - c0 });
+	}
+
+
+
+	// Overlap of two {row, col, rows, cols} regions, or null if they don't.
+	private static int[] Intersect(int[] a, int[] b)
+	{
+		int r0 = Math.max(a[0], b[0]);
+		int c0 = Math.max(a[1], b[1]);
+		int r1 = Math.min(a[0] + a[2], b[0] + b[2]);
+		int c1 = Math.min(a[1] + a[3], b[1] + b[3]);
+		if (r1 <= r0 || c1 <= c0) return null;
+		return new int[] { r0, c0, r1 - r0, c1 - c0 };
+	}
+
+
+
+	public String toString()
+	{
+		return counts.length + (vertical ? " column" : " row") + " bands of " + Arrays.toString(counts) + " tiles";
+	}
+}
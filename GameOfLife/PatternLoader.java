@@ -0,0 +1,199 @@
+// Copyright David Petrie 2008
+//
+// Loads a starting pattern from a file into a CellGrid, reading the file
+// once, a byte at a time from a buffer. Three formats are understood:
+//
+//   x/o     this project's own: a line per row, 'x' for a live cell and
+//           anything else ('o' by convention) for a dead one.
+//   .cells  plaintext: a line per row, 'O' (or '*') for a live cell and
+//           '.' for a dead one, with '!' at the start of comment lines.
+//   RLE     '#' comment lines, an "x = <cols>, y = <rows>" header, then
+//           runs of cells as <count><tag>, where the tag is 'b' for dead
+//           cells, 'o' (or any other letter) for live ones, '$' to end a
+//           row, and '!' ends the pattern. A missing count means 1.
+//
+// Files named .rle or .cells are read as such. Otherwise a file is taken
+// as RLE if it starts with '#' or an "x =" header, as plaintext if it
+// starts with '!', and as x/o if not.
+//
+// Rows in the line based formats can be ragged: the pattern is as wide as
+// its longest row. They are packed into words as they are read, as the
+// number of rows isn't known until the end; RLE goes straight into a grid
+// of the size in its header.
+import java.io.*;
+import java.util.*;
+
+public class PatternLoader
+{
+	private InputStream in = null;
+	private byte[] buffer = new byte[1 << 16];
+	private int length = 0;
+	private int position = 0;
+
+
+
+	private PatternLoader(InputStream in)
+	{
+		this.in = in;
+	}
+
+
+
+	public static CellGrid Load(String filename) throws IOException
+	{
+		PatternLoader p = new PatternLoader(new FileInputStream(filename));
+		try {
+			String name = filename.toLowerCase();
+			p.Fill();
+			if (name.endsWith(".rle")) return p.ReadRLE();
+			if (name.endsWith(".cells")) return p.ReadRows(true);
+			int first = (p.length > 0) ? p.buffer[0] : -1;
+			if (first == '#' || p.StartsWithHeader()) return p.ReadRLE();
+			return p.ReadRows(first == '!');
+		} finally {
+			p.in.close();
+		}
+	}
+
+
+
+	// Reads the x/o or (if plaintext is set) the .cells format.
+	private CellGrid ReadRows(boolean plaintext) throws IOException
+	{
+		ArrayList<long[]> rows = new ArrayList<>();
+		long[] row = new long[1];
+		int col = 0, cols = 0;
+		boolean started = false, comment = false;
+		int c;
+		while ((c = Read()) >= 0)
+		{
+			if (c == '\n') {
+				if (!comment) {
+					rows.add(Arrays.copyOf(row, (col + 63) >>> 6));
+					Arrays.fill(row, 0, (col + 63) >>> 6, 0L);
+					cols = Math.max(cols, col);
+				}
+				col = 0;
+				started = comment = false;
+				continue;
+			}
+			if (c == '\r' || comment) continue;
+			if (!started && plaintext && c == '!') {
+				comment = true;
+				continue;
+			}
+			started = true;
+			if ((col >>> 6) >= row.length) row = Arrays.copyOf(row, row.length * 2);
+			boolean live = plaintext ? (c == 'O' || c == '*') : (c == 'x' || c == 'X');
+			if (live) row[col >>> 6] |= 1L << (col & 63);
+			col++;
+		}
+		if (started && !comment) {
+			rows.add(Arrays.copyOf(row, (col + 63) >>> 6));
+			cols = Math.max(cols, col);
+		}
+
+		CellGrid cells = new CellGrid(rows.size(), cols);
+		for (int r = 0; r < rows.size(); r++)
+		{
+			long[] words = rows.get(r);
+			System.arraycopy(words, 0, cells.words, r * cells.wordsPerRow, words.length);
+		}
+		return cells;
+	}
+
+
+
+	private CellGrid ReadRLE() throws IOException
+	{
+		String header = ReadLine();
+		while (header != null && (header.trim().length() == 0 || header.trim().startsWith("#")))
+			header = ReadLine();
+		if (header == null) throw new IOException("RLE pattern has no header");
+
+		int rows = -1, cols = -1;
+		for (String field: header.split(","))
+		{
+			String[] kv = field.split("=", 2);
+			if (kv.length < 2) throw new IOException("Bad RLE header: " + header);
+			String key = kv[0].trim().toLowerCase();
+			String value = kv[1].trim();
+			if (key.equals("x")) cols = Integer.parseInt(value);
+			else if (key.equals("y")) rows = Integer.parseInt(value);
+			else if (key.equals("rule") && !value.equalsIgnoreCase("B3/S23") && !value.equals("23/3"))
+				System.out.println("Ignoring rule " + value + ", only B3/S23 is supported");
+		}
+		if (rows < 0 || cols < 0) throw new IOException("Bad RLE header: " + header);
+
+		CellGrid cells = new CellGrid(rows, cols);
+		int row = 0, col = 0, count = 0;
+		int c;
+		while ((c = Read()) >= 0 && c != '!')
+		{
+			if (c >= '0' && c <= '9') {
+				count = count * 10 + (c - '0');
+				continue;
+			}
+			if (c == ' ' || c == '\t' || c == '\r' || c == '\n') continue;
+			int n = Math.max(1, count);
+			count = 0;
+			if (c == '$') {
+				row += n;
+				col = 0;
+			} else if (c == 'b' || c == '.') col += n;
+			else {
+				if (row >= rows || col + n > cols) throw new IOException("RLE pattern runs past its " + cols + " x " + rows + " header");
+				for (int i = 0; i < n; i += 64)
+					cells.SetWord(row, col + i, -1L, Math.min(64, n - i));
+				col += n;
+			}
+		}
+		return cells;
+	}
+
+
+
+	// Whether the file starts with an RLE "x =" header.
+	private boolean StartsWithHeader()
+	{
+		int i = 0;
+		if (i >= length || buffer[i] != 'x') return false;
+		for (i++; i < length && (buffer[i] == ' ' || buffer[i] == '\t'); i++);
+		return i < length && buffer[i] == '=';
+	}
+
+
+
+	// The next line, without its line ending, or null at the end of the
+	// file.
+	private String ReadLine() throws IOException
+	{
+		StringBuilder line = new StringBuilder();
+		int c = Read();
+		if (c < 0) return null;
+		while (c >= 0 && c != '\n') {
+			if (c != '\r') line.append((char)c);
+			c = Read();
+		}
+		return line.toString();
+	}
+
+
+
+	private int Read() throws IOException
+	{
+		if (position >= length) {
+			Fill();
+			if (length <= 0) return -1;
+		}
+		return buffer[position++] & 0xff;
+	}
+
+
+
+	private void Fill() throws IOException
+	{
+		length = in.read(buffer);
+		position = 0;
+	}
+}
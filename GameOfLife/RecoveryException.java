@@ -0,0 +1,17 @@
+// Copyright David Petrie 2008
+//
+// Thrown on a worker when the master has asked it to drop what it's doing
+// because another worker failed (see Worker.Recover).
+import java.io.*;
+
+public class RecoveryException extends IOException
+{
+	private static final long serialVersionUID = 1L;
+
+
+
+	public RecoveryException()
+	{
+		super("Asked to recover by the master");
+	}
+}
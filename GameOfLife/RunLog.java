@@ -0,0 +1,184 @@
+// Copyright David Petrie 2008
+//
+// A compact record of every frame the master prints, for replaying a run
+// later (see RunLogReader) without keeping its stdout, which takes a byte
+// for every cell of every generation.
+//
+// Frames are stored as the 64 cell words of their rows, in the same order
+// as a CellGrid's. Every keyframeEvery generations, and whenever the space
+// moves or changes size, the words are stored as they are (a keyframe). In
+// between only the XOR of each word with the same word of the frame
+// before is stored (a delta), which is mostly zeros. Either way the words
+// are run length encoded: runs of zero words are only counted.
+//
+// On disk (big endian):
+//
+//   int      magic ("GOLL") and VERSION
+//   short    length of the rule, then the rule ("B3/S23")
+//   byte     1 if every frame shows the same window of the space, 0 if
+//            the window follows the cells around (-Dgol.unbounded=true)
+//            and the master prints where it is with each frame
+//   int      rows, cols the space starts with
+//   int      keyframeEvery
+//
+// then for each frame:
+//
+//   byte     KEYFRAME or DELTA
+//   int      generation
+//   int      row, col of the frame's top left cell in the space
+//   int      rows, cols
+//   int      length of the words that follow, in bytes
+//   ...      the words as runs of:
+//              varint  number of zero words
+//              varint  number of words that follow
+//              long    each of those words
+//
+// A varint is 7 bits to a byte, lowest first, with the top bit set on all
+// but the last byte. The length of each frame lets a reader skip straight
+// over the ones it doesn't need.
+//
+// Writes go through a buffer and out to a file channel in large blocks.
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+public class RunLog
+{
+	public static final int MAGIC = 0x474f4c4c;
+	public static final int VERSION = 1;
+	public static final String RULE = "B3/S23";
+	public static final byte KEYFRAME = 'K';
+	public static final byte DELTA = 'D';
+	public static final int HEADER = 1 + 4 * 6;
+
+	private FileChannel channel = null;
+	private ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+	private ByteBuffer frame = ByteBuffer.allocate(1 << 16);
+	private int keyframeEvery = 0;
+	private int lastKeyframe = 0;
+	private CellGrid last = null;
+	private int lastRow = 0;
+	private int lastCol = 0;
+	private long[] delta = new long[0];
+
+
+
+	// Starts a new log at path, replacing any file already there. "fixed"
+	// is whether the master prints the same window of the space every
+	// generation, rather than one that moves with the cells.
+	public RunLog(String path, boolean fixed, int rows, int cols, int keyframeEvery) throws IOException
+	{
+		this.keyframeEvery = Math.max(1, keyframeEvery);
+		channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		byte[] rule = RULE.getBytes("US-ASCII");
+		buffer.putInt(MAGIC).putInt(VERSION);
+		buffer.putShort((short)rule.length).put(rule);
+		buffer.put((byte)(fixed ? 1 : 0));
+		buffer.putInt(rows).putInt(cols).putInt(this.keyframeEvery);
+	}
+
+
+
+	// Adds the frame for "generation", whose top left cell is at row/col in
+	// the space. The log keeps the grid to work out the next delta, so it
+	// mustn't be changed afterwards.
+	public void Write(int generation, CellGrid cells, int row, int col) throws IOException
+	{
+		boolean key = last == null || generation - lastKeyframe >= keyframeEvery
+			|| row != lastRow || col != lastCol || cells.rows != last.rows || cells.cols != last.cols;
+		long[] words = cells.words;
+		if (!key) {
+			if (delta.length < words.length) delta = new long[words.length];
+			for (int i = 0; i < words.length; i++) delta[i] = words[i] ^ last.words[i];
+			words = delta;
+		}
+		if (key) lastKeyframe = generation;
+		last = cells;
+		lastRow = row;
+		lastCol = col;
+
+		frame.clear();
+		Encode(words, cells.words.length);
+		frame.flip();
+		Reserve(HEADER + frame.remaining());
+		buffer.put(key ? KEYFRAME : DELTA).putInt(generation);
+		buffer.putInt(row).putInt(col).putInt(cells.rows).putInt(cells.cols);
+		buffer.putInt(frame.remaining());
+		if (frame.remaining() <= buffer.remaining()) buffer.put(frame);
+		else {
+			Flush();
+			while (frame.hasRemaining()) channel.write(frame);
+		}
+	}
+
+
+
+	public void Close() throws IOException
+	{
+		Flush();
+		channel.close();
+	}
+
+
+
+	// Run length encodes the first "count" words into the frame buffer.
+	private void Encode(long[] words, int count)
+	{
+		int i = 0;
+		while (i < count) {
+			int zeros = 0;
+			while (i < count && words[i] == 0L) {
+				zeros++;
+				i++;
+			}
+			int start = i;
+			while (i < count && words[i] != 0L) i++;
+			FrameRoom(10 + 8 * (i - start));
+			PutVarint(zeros);
+			PutVarint(i - start);
+			for (int j = start; j < i; j++) frame.putLong(words[j]);
+		}
+	}
+
+
+
+	// Grows the frame buffer if it has less than "bytes" left.
+	private void FrameRoom(int bytes)
+	{
+		if (frame.remaining() >= bytes) return;
+		ByteBuffer bigger = ByteBuffer.allocate(Math.max(frame.capacity() * 2, frame.position() + bytes));
+		frame.flip();
+		bigger.put(frame);
+		frame = bigger;
+	}
+
+
+
+	private void PutVarint(int v)
+	{
+		while ((v & ~0x7f) != 0) {
+			frame.put((byte)((v & 0x7f) | 0x80));
+			v >>>= 7;
+		}
+		frame.put((byte)v);
+	}
+
+
+
+	// Writes the buffer out if it has less than "bytes" left. Frames bigger
+	// than the buffer are written past it (see Write).
+	private void Reserve(int bytes) throws IOException
+	{
+		if (buffer.remaining() < bytes) Flush();
+	}
+
+
+
+	private void Flush() throws IOException
+	{
+		buffer.flip();
+		while (buffer.hasRemaining()) channel.write(buffer);
+		buffer.clear();
+	}
+}
@@ -0,0 +1,238 @@
+// Copyright David Petrie 2008
+//
+// Reads a run log written by RunLog (see there for the format).
+//
+// The file is mapped rather than read in. Opening it only walks the frame
+// headers, skipping the words, to find where each frame starts and the
+// keyframe it builds on. Seek then goes to any generation by decoding its
+// keyframe and the deltas after it, rather than every frame from the
+// start of the run.
+//
+// Run from the command line it prints frames as the master did:
+//
+// % java RunLogReader run.log [from] [to]
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+
+public class RunLogReader
+{
+	public String rule = "";
+	public boolean fixed = false;
+	public int rows = 0;
+	public int cols = 0;
+	public int keyframeEvery = 0;
+
+	private MappedByteBuffer b = null;
+	private int[] generations = new int[0];
+	private int[] offsets = new int[0];
+	private int[] keyframes = new int[0];
+	private int count = 0;
+	private int current = -1;
+	private CellGrid cells = null;
+	private int row = 0;
+	private int col = 0;
+
+
+
+	public RunLogReader(String path) throws IOException
+	{
+		FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+		try {
+			if (channel.size() > Integer.MAX_VALUE) throw new IOException("Run log is too big to map: " + path);
+			b = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			channel.close();
+		}
+		try {
+			if (b.getInt() != RunLog.MAGIC) throw new IOException("Not a run log: " + path);
+			int version = b.getInt();
+			if (version != RunLog.VERSION) throw new IOException("Unknown run log version " + version + ": " + path);
+			byte[] r = new byte[b.getShort()];
+			b.get(r);
+			rule = new String(r, "US-ASCII");
+			fixed = b.get() != 0;
+			rows = b.getInt();
+			cols = b.getInt();
+			keyframeEvery = b.getInt();
+			Index();
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Run log is truncated: " + path);
+		}
+	}
+
+
+
+	// Number of frames in the log.
+	public int GetFrameCount()
+	{
+		return count;
+	}
+
+
+
+	// Generation of the n-th frame.
+	public int GetGeneration(int n)
+	{
+		return generations[n];
+	}
+
+
+
+	// Goes to the last frame at or before "generation", or the first frame if
+	// there isn't one, and returns its cells. Returns null if the log has no
+	// frames. The grid returned is the reader's own, and is changed by the
+	// next Seek or Next.
+	public CellGrid Seek(int generation) throws IOException
+	{
+		int n = Arrays.binarySearch(generations, 0, count, generation);
+		if (n < 0) n = Math.max(0, -n - 2);
+		return Go(n);
+	}
+
+
+
+	// Goes to the frame after the current one, or returns null at the end.
+	public CellGrid Next() throws IOException
+	{
+		return Go(current + 1);
+	}
+
+
+
+	// Generation of the current frame.
+	public int GetGeneration()
+	{
+		return generations[current];
+	}
+
+
+
+	// Top left cell of the current frame in the space.
+	public int GetRow()
+	{
+		return row;
+	}
+
+
+
+	public int GetCol()
+	{
+		return col;
+	}
+
+
+
+	// Goes to the n-th frame, decoding from its keyframe unless the current
+	// frame is on the way there already.
+	private CellGrid Go(int n) throws IOException
+	{
+		if (n < 0 || n >= count) return null;
+		int from = keyframes[n];
+		if (current >= from && current <= n) from = current + 1;
+		for (int i = from; i <= n; i++) Decode(i);
+		current = n;
+		return cells;
+	}
+
+
+
+	// Applies the i-th frame to the cells: a keyframe replaces them, a
+	// delta is XORed into them.
+	private void Decode(int i) throws IOException
+	{
+		try {
+			b.position(offsets[i]);
+			boolean key = b.get() == RunLog.KEYFRAME;
+			b.getInt();
+			row = b.getInt();
+			col = b.getInt();
+			int frameRows = b.getInt();
+			int frameCols = b.getInt();
+			int end = b.getInt();
+			end += b.position();
+			if (key) cells = new CellGrid(frameRows, frameCols);
+			long[] words = cells.words;
+			int w = 0;
+			while (b.position() < end) {
+				w += GetVarint();
+				int literals = GetVarint();
+				if (w + literals > words.length) throw new IOException("Bad frame at generation " + generations[i]);
+				for (int j = 0; j < literals; j++, w++)
+					words[w] = key ? b.getLong() : words[w] ^ b.getLong();
+			}
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Run log is truncated at generation " + generations[i]);
+		}
+	}
+
+
+
+	// Finds where each frame starts, and its keyframe. A frame cut short by
+	// the run stopping part way through writing it is left out.
+	private void Index()
+	{
+		int key = -1;
+		while (b.remaining() >= RunLog.HEADER) {
+			int start = b.position();
+			byte type = b.get();
+			int generation = b.getInt();
+			b.position(start + RunLog.HEADER - 4);
+			int length = b.getInt();
+			if (length < 0 || length > b.remaining()) break;
+			b.position(b.position() + length);
+			if (type == RunLog.KEYFRAME) key = count;
+			if (key < 0) continue;
+			if (count == generations.length) {
+				int size = Math.max(16, count * 2);
+				generations = Arrays.copyOf(generations, size);
+				offsets = Arrays.copyOf(offsets, size);
+				keyframes = Arrays.copyOf(keyframes, size);
+			}
+			generations[count] = generation;
+			offsets[count] = start;
+			keyframes[count] = key;
+			count++;
+		}
+	}
+
+
+
+	private int GetVarint()
+	{
+		int v = 0;
+		for (int shift = 0; ; shift += 7)
+		{
+			byte x = b.get();
+			v |= (x & 0x7f) << shift;
+			if (x >= 0) return v;
+		}
+	}
+
+
+
+	// Prints the frames from generation "from" to "to" in the master's
+	// format.
+	public static void main(String[] args)
+	{
+		try {
+			RunLogReader log = new RunLogReader(args[0]);
+			int from = (args.length > 1) ? Integer.parseInt(args[1]) : Integer.MIN_VALUE;
+			int to = (args.length > 2) ? Integer.parseInt(args[2]) : Integer.MAX_VALUE;
+			System.out.println("Run log \"" + args[0] + "\": " + log.rule + ", " + log.rows + " x " + log.cols
+				+ (log.fixed ? "" : ", moving") + ", " + log.GetFrameCount() + " frames");
+			CellGrid cells = log.Seek(from);
+			if (cells != null && log.GetGeneration() < from) cells = log.Next();
+			while (cells != null && log.GetGeneration() <= to) {
+				System.out.println("Cells at " + log.GetGeneration());
+				if (!log.fixed) System.out.println("Space at " + log.GetRow() + "," + log.GetCol());
+				GameOfLifeUtils.PrintCells(cells);
+				cells = log.Next();
+			}
+		} catch (IOException e) {
+			System.err.println(e);
+		}
+	}
+}
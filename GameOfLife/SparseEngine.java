@@ -0,0 +1,71 @@
+// Copyright David Petrie 2008
+//
+// Steps an unbounded game space held as a SparseGrid, one generation at
+// a time.
+//
+// Only the chunks of the space with live cells (and those next to them)
+// are stored and stepped, so a few small patterns can be spread over a
+// space millions of cells across. Rows and columns must fit in an int.
+public class SparseEngine implements LifeEngine
+{
+	private SparseGrid cells = new SparseGrid(0, 0);
+	private SparseGrid next = new SparseGrid(0, 0);
+	private long generation = 0;
+
+
+
+	public void Load(CellGrid pattern, long row, long col)
+	{
+		cells.CopyRegion(pattern, 0, 0, Position(row), Position(col), pattern.rows, pattern.cols);
+	}
+
+
+
+	public void Step(long generations)
+	{
+		for (long i = 0; i < generations; i++)
+		{
+			SparseGrid.NextState(cells, next);
+			SparseGrid tmp = cells;
+			cells = next;
+			next = tmp;
+			generation++;
+		}
+	}
+
+
+
+	public long GetGeneration()
+	{
+		return generation;
+	}
+
+
+
+	public long GetPopulation()
+	{
+		return cells.CountLiveCells();
+	}
+
+
+
+	public long GetHash()
+	{
+		return GameOfLifeUtils.HashCells(cells);
+	}
+
+
+
+	public CellGrid Snapshot(long row, long col, int rows, int cols)
+	{
+		return cells.Snapshot(Position(row), Position(col), rows, cols);
+	}
+
+
+
+	private static int Position(long i)
+	{
+		if (i < Integer.MIN_VALUE || i > Integer.MAX_VALUE) throw new IllegalArgumentException("Position out of range: " + i);
+		return (int)i;
+	}
+}
@@ -0,0 +1,401 @@
+// Copyright David Petrie 2008
+//
+// Sparse matrix of cells, for game spaces that are mostly empty.
+//
+// Cells are kept in chunks of 64 x 64, each stored as 64 longs (one per
+// row, with column c of the chunk in bit c). Chunks are kept in a hash
+// map keyed on their position, are only created when a cell in them
+// comes to life, and are dropped again once they are empty. Memory use
+// therefore follows the number of live regions rather than the size of
+// the space, and rows and columns can be anywhere in the int range,
+// negative ones included.
+//
+// rows and cols give the size of the space as far as printing and
+// comparing go; cells can still be set outside it.
+//
+// Changes to the cells can be logged so they can be undone (see
+// StartUndo), which is how the master winds the space back when a worker
+// fails part way through a generation, without copying the whole space
+// every generation just in case.
+import java.util.*;
+
+public class SparseGrid
+{
+	public static final int CHUNK = 64;
+
+	public final int rows;
+	public final int cols;
+	private HashMap<Long, long[]> chunks = new HashMap<>();
+	private ArrayList<long[]> spare = new ArrayList<>();
+	private boolean logging = false;
+	private long[] undo = new long[0];
+	private int undoLength = 0;
+
+
+
+	public SparseGrid(int rows, int cols)
+	{
+		this.rows = rows;
+		this.cols = cols;
+	}
+
+
+
+	public boolean Get(int row, int col)
+	{
+		long[] chunk = chunks.get(Key(row >> 6, col >> 6));
+		if (chunk == null) return false;
+		return ((chunk[row & 63] >>> (col & 63)) & 1L) != 0;
+	}
+
+
+
+	public void Set(int row, int col, boolean hasLife)
+	{
+		SetWord(row, col, hasLife ? 1L : 0L, 1);
+	}
+
+
+
+	// Gets the 64 cells of a row starting at col as a word, with col in the
+	// lowest bit.
+	public long GetWord(int row, int col)
+	{
+		int shift = col & 63;
+		long w = ChunkWord(row, col >> 6) >>> shift;
+		if (shift != 0) w |= ChunkWord(row, (col >> 6) + 1) << (64 - shift);
+		return w;
+	}
+
+
+
+	// Sets "count" (at most 64) cells of a row, starting at col, from the
+	// low bits of a word.
+	public void SetWord(int row, int col, long bits, int count)
+	{
+		long mask = (count >= 64) ? -1L : (1L << count) - 1;
+		bits &= mask;
+		int shift = col & 63;
+		SetChunkWord(row, col >> 6, mask << shift, bits << shift);
+		if (shift != 0 && count > 64 - shift) {
+			SetChunkWord(row, (col >> 6) + 1, mask >>> (64 - shift), bits >>> (64 - shift));
+		}
+	}
+
+
+
+	// Copies a rows x cols block of cells from src (starting at srcRow/srcCol)
+	// into this grid (starting at dstRow/dstCol).
+	public void CopyRegion(CellGrid src, int srcRow, int srcCol, int dstRow, int dstCol, int rows, int cols)
+	{
+		for (int r = 0; r < rows; r++)
+		{
+			for (int c = 0; c < cols; c += 64)
+				SetWord(dstRow + r, dstCol + c, src.GetWord(srcRow + r, srcCol + c), Math.min(64, cols - c));
+		}
+	}
+
+
+
+	// Copies a rows x cols window of cells, starting at row/col, into a new
+	// grid.
+	public CellGrid Snapshot(int row, int col, int rows, int cols)
+	{
+		CellGrid g = new CellGrid(rows, cols);
+		for (int r = 0; r < rows; r++)
+		{
+			for (int c = 0; c < cols; c += 64)
+				g.SetWord(r, c, GetWord(row + r, col + c), Math.min(64, cols - c));
+		}
+		return g;
+	}
+
+
+
+	// The top left cells ({row, col}) of the chunks that have live cells.
+	public ArrayList<int[]> GetChunks()
+	{
+		ArrayList<int[]> list = new ArrayList<>();
+		for (long key: chunks.keySet())
+			list.add(new int[] { (int)(key >> 32) << 6, (int)key << 6 });
+		return list;
+	}
+
+
+
+	// The smallest box holding every live cell, as {top, left, bottom,
+	// right} with bottom and right one past the last row and column. Returns
+	// null if there are no live cells.
+	public int[] GetBounds()
+	{
+		int[] b = null;
+		for (Map.Entry<Long, long[]> e: chunks.entrySet())
+		{
+			int top = (int)(e.getKey() >> 32) << 6;
+			int left = (int)(long)e.getKey() << 6;
+			long[] chunk = e.getValue();
+			long any = 0L;
+			int first = -1, last = -1;
+			for (int r = 0; r < CHUNK; r++)
+			{
+				if (chunk[r] == 0L) continue;
+				if (first < 0) first = r;
+				last = r;
+				any |= chunk[r];
+			}
+			int[] c = { top + first, left + Long.numberOfTrailingZeros(any), top + last + 1, left + 64 - Long.numberOfLeadingZeros(any) };
+			if (b == null) b = c;
+			else b = new int[] { Math.min(b[0], c[0]), Math.min(b[1], c[1]), Math.max(b[2], c[2]), Math.max(b[3], c[3]) };
+		}
+		return b;
+	}
+
+
+
+	// The 64 words of the chunk whose top left cell is at row/col (both
+	// multiples of 64), or null if it has no live cells. The words are the
+	// grid's own, so must not be changed.
+	public long[] GetChunk(int row, int col)
+	{
+		return chunks.get(Key(row >> 6, col >> 6));
+	}
+
+
+
+	// Replaces the chunk whose top left cell is at row/col with 64 words.
+	public void SetChunk(int row, int col, long[] words)
+	{
+		long key = Key(row >> 6, col >> 6);
+		long[] old = chunks.remove(key);
+		if (old != null) spare.add(old);
+		if (!IsEmpty(words)) {
+			long[] chunk = NewChunk();
+			System.arraycopy(words, 0, chunk, 0, CHUNK);
+			chunks.put(key, chunk);
+		}
+	}
+
+
+
+	// Starts logging the changes made to the cells through Set, SetWord and
+	// CopyRegion, forgetting any logged before. Only words whose cells
+	// actually change are logged, as pairs of the word's row and chunk
+	// column and what the word was, so the log stays as small as the
+	// changes are.
+	public void StartUndo()
+	{
+		logging = true;
+		undoLength = 0;
+	}
+
+
+
+	// Stops logging changes, and forgets the ones logged. The log's memory
+	// is kept for the next StartUndo.
+	public void StopUndo()
+	{
+		logging = false;
+		undoLength = 0;
+	}
+
+
+
+	// Puts back every cell changed since StartUndo, and carries on logging
+	// from there. Does nothing if changes aren't being logged.
+	public void Undo()
+	{
+		if (!logging) return;
+		logging = false;
+		for (int i = undoLength - 2; i >= 0; i -= 2)
+			SetChunkWord((int)(undo[i] >> 32), (int)undo[i], -1L, undo[i + 1]);
+		logging = true;
+		undoLength = 0;
+	}
+
+
+
+	public int GetChunkCount()
+	{
+		return chunks.size();
+	}
+
+
+
+	// Number of live cells in the grid.
+	public long CountLiveCells()
+	{
+		long count = 0;
+		for (long[] chunk: chunks.values())
+		{
+			for (long w: chunk) count += Long.bitCount(w);
+		}
+		return count;
+	}
+
+
+
+	public void Clear()
+	{
+		spare.addAll(chunks.values());
+		chunks.clear();
+	}
+
+
+
+	public SparseGrid Copy()
+	{
+		return Copy(rows, cols);
+	}
+
+
+
+	// A copy of the cells with a different size for printing and comparing.
+	public SparseGrid Copy(int rows, int cols)
+	{
+		SparseGrid g = new SparseGrid(rows, cols);
+		for (Map.Entry<Long, long[]> e: chunks.entrySet())
+			g.chunks.put(e.getKey(), e.getValue().clone());
+		return g;
+	}
+
+
+
+	public boolean equals(SparseGrid g)
+	{
+		if (g.rows != rows || g.cols != cols || g.chunks.size() != chunks.size()) return false;
+		for (Map.Entry<Long, long[]> e: chunks.entrySet())
+		{
+			if (!Arrays.equals(e.getValue(), g.chunks.get(e.getKey()))) return false;
+		}
+		return true;
+	}
+
+
+
+	// Finds the next state of every cell in "in" and writes it to "out",
+	// which must be a different grid. The space does not wrap around or
+	// end: only chunks with live cells, and the chunks around them, are
+	// stepped.
+	public static void NextState(SparseGrid in, SparseGrid out)
+	{
+		out.Clear();
+		HashSet<Long> candidates = new HashSet<>();
+		for (long key: in.chunks.keySet())
+		{
+			int chunkRow = (int)(key >> 32);
+			int chunkCol = (int)key;
+			for (Direction d: Direction.values())
+				candidates.add(Key(chunkRow + d.rows, chunkCol + d.cols));
+			candidates.add(key);
+		}
+
+		// each chunk is stepped in the middle of a 66 row by 3 word grid
+		// holding it and the edges of the chunks around it.
+		CellGrid window = new CellGrid(CHUNK + 2, 3 * 64);
+		CellGrid next = new CellGrid(CHUNK + 2, 3 * 64);
+		long[][] around = new long[9][];
+		for (long key: candidates)
+		{
+			int chunkRow = (int)(key >> 32);
+			int chunkCol = (int)key;
+			boolean any = false;
+			for (int i = 0; i < 9; i++)
+			{
+				around[i] = in.chunks.get(Key(chunkRow + i / 3 - 1, chunkCol + i % 3 - 1));
+				any |= around[i] != null;
+			}
+			if (!any) continue;
+
+			for (int r = 0; r < CHUNK + 2; r++)
+			{
+				int band = (r == 0) ? 0 : (r == CHUNK + 1) ? 2 : 1;
+				int row = (r - 1) & 63;
+				for (int w = 0; w < 3; w++)
+				{
+					long[] chunk = around[band * 3 + w];
+					window.words[r * 3 + w] = (chunk == null) ? 0L : chunk[row];
+				}
+			}
+			CellGrid.NextState(window, next, 1, CHUNK + 1, 1, 2);
+
+			long[] chunk = null;
+			for (int r = 0; r < CHUNK; r++)
+			{
+				long w = next.words[(r + 1) * 3 + 1];
+				if (w == 0L) continue;
+				if (chunk == null) chunk = out.NewChunk();
+				chunk[r] = w;
+			}
+			if (chunk != null) out.chunks.put(key, chunk);
+		}
+	}
+
+
+
+	private static long Key(int chunkRow, int chunkCol)
+	{
+		return ((long)chunkRow << 32) | (chunkCol & 0xffffffffL);
+	}
+
+
+
+	private long ChunkWord(int row, int chunkCol)
+	{
+		long[] chunk = chunks.get(Key(row >> 6, chunkCol));
+		return (chunk == null) ? 0L : chunk[row & 63];
+	}
+
+
+
+	// Replaces the bits under mask in one word of a chunk, creating the
+	// chunk if it's needed and dropping it if it's left empty.
+	private void SetChunkWord(int row, int chunkCol, long mask, long bits)
+	{
+		long key = Key(row >> 6, chunkCol);
+		long[] chunk = chunks.get(key);
+		if (logging) {
+			long old = (chunk == null) ? 0L : chunk[row & 63];
+			if ((old & mask) != bits) Log(row, chunkCol, old);
+		}
+		if (chunk == null) {
+			if (bits == 0L) return;
+			chunk = NewChunk();
+			chunks.put(key, chunk);
+		}
+		chunk[row & 63] = (chunk[row & 63] & ~mask) | bits;
+		if (bits == 0L && IsEmpty(chunk)) {
+			chunks.remove(key);
+			spare.add(chunk);
+		}
+	}
+
+
+
+	private void Log(int row, int chunkCol, long old)
+	{
+		if (undoLength == undo.length) undo = Arrays.copyOf(undo, Math.max(1024, undo.length * 2));
+		undo[undoLength++] = ((long)row << 32) | (chunkCol & 0xffffffffL);
+		undo[undoLength++] = old;
+	}
+
+
+
+	private long[] NewChunk()
+	{
+		if (spare.isEmpty()) return new long[CHUNK];
+		long[] chunk = spare.remove(spare.size() - 1);
+		Arrays.fill(chunk, 0L);
+		return chunk;
+	}
+
+
+
+	private static boolean IsEmpty(long[] chunk)
+	{
+		for (long w: chunk)
+		{
+			if (w != 0L) return false;
+		}
+		return true;
+	}
+}
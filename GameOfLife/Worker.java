@@ -9,22 +9,62 @@
 // Spawns a WorkerConnectionHandler for handling incoming
 // connections from other worker processes. This connection 
 // handler also runs in a separate thread.
+//
+// Lines from the master are read on a thread of their own, which drops
+// the master's heartbeats and gives up on the master if it goes quiet for
+// GameOfLifeUtils.DEAD_AFTER seconds. Another thread sends the master a
+// heartbeat every GameOfLifeUtils.HEARTBEAT ms.
+//
+// How long each generation spends stepping the tile, and getting and
+// sending boundaries, and how much goes over each connection, are kept in
+// its Metrics.
 import java.net.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 
 
 public class Worker
 {
 	private ServerSocket dataServer = null;
-	private Hashtable<String, Socket> neighbours = null;
+	private Hashtable<String, NeighbourLink> neighbours = new Hashtable<>();
+	private ArrayList<HaloPiece> sends = new ArrayList<>();
+	private ArrayList<NeighbourLink> sendLinks = new ArrayList<>();
+	private ArrayList<HaloPiece> receives = new ArrayList<>();
+	private ArrayList<int[]> clears = new ArrayList<>();
+	private int senders = 0;
 	private WorkerConnectionHandler neighbourConnections = null;
 	private Socket masterConnection = null;
-	private Cell[][] previousCells = null;
-	private Cell[][] currentCells = null;
+	private HaloTile currentCells = null;
+	private CellGrid reportedCells = null;
+	private int originRow = 0;
+	private int originCol = 0;
+	private int generation = 0;
+	private int exchangeBase = 0;
+	private boolean binaryHalo = !"text".equals(System.getProperty("gol.halo"));
+	private HaloMailbox mailbox = new HaloMailbox();
+	private ParallelStepper stepper = null;
+	private HashMap<Integer, long[]> lastHalo = new HashMap<>();
+	private boolean haloUnchanged = false;
+	private boolean changedSinceExchange = true;
+	private boolean quiescent = false;
+	private boolean unreported = true;
+	private long stepNanos = 0;
+	private Metrics metrics = null;
+	private Histogram computeTimes = null;
+	private Histogram exchangeTimes = null;
+	private Histogram fetchTimes = null;
+	private Histogram waitTimes = null;
+	private Histogram sendTimes = null;
+	private int steps = 0;
+	private long population = 0;
+	private long tileHash = 0L;
 	private PrintWriter out = null;
 	private BufferedReader in = null;
+	private LinkedBlockingQueue<String> fromMaster = new LinkedBlockingQueue<>();
+	private volatile boolean masterLost = false;
+	private boolean recoverSeen = false;
 	private int workerPort = 0;
 	private int masterPort = 0;
 	private String masterHost = "localhost";
@@ -35,7 +75,14 @@ public class Worker
 		this.workerPort = workerPort;
 		this.masterHost = masterHost;
 		this.masterPort = masterPort;
+		metrics = new Metrics("worker " + workerPort);
+		computeTimes = metrics.GetPhase("compute");
+		exchangeTimes = metrics.GetPhase("exchange");
+		fetchTimes = metrics.GetPhase("fetch");
+		waitTimes = metrics.GetPhase("wait");
+		sendTimes = metrics.GetPhase("send");
 		try {
+			metrics.Start();
 			dataServer = new ServerSocket(workerPort);
 			neighbourConnections = new WorkerConnectionHandler(this, dataServer);
 			neighbourConnections.start();
@@ -55,11 +102,14 @@ public class Worker
 		try {
 			masterConnection = new Socket(masterHost, masterPort);
 			System.out.println("Worker successfully connected to master!");
-			out = new PrintWriter(masterConnection.getOutputStream(), true);
-			in = new BufferedReader(new InputStreamReader(masterConnection.getInputStream()));
+			LinkCounter link = metrics.GetLink("master");
+			out = new PrintWriter(link.Count(masterConnection.getOutputStream()), true);
+			in = new BufferedReader(new InputStreamReader(link.Count(masterConnection.getInputStream())));
 			out.println("worker");
 			out.println(this.workerPort);
 			out.println(((InetSocketAddress)dataServer.getLocalSocketAddress()).getHostName());
+			masterConnection.setSoTimeout((int)(GameOfLifeUtils.DEAD_AFTER * 1000));
+			StartMasterThreads();
 		} catch (ConnectException e) {
 			// wait and try again
 			System.out.println("Connection refused. Waiting 5 seconds before trying again...");
@@ -74,6 +124,69 @@ public class Worker
 
 
 
+	// Starts the threads that read lines from the master and send it
+	// heartbeats.
+	//
+	// When the master asks for a recovery the mailbox is aborted at once,
+	// as we may be stuck waiting for a boundary from the worker that failed.
+	private void StartMasterThreads()
+	{
+		Thread reader = new Thread() {
+			public void run() {
+				try {
+					String line;
+					while ((line = in.readLine()) != null) {
+						if (line.equals("alive")) continue;
+						if (line.equals("recover")) mailbox.Abort();
+						fromMaster.add(line);
+					}
+				} catch (IOException e) {
+					System.err.println("Lost the master: " + e);
+				}
+				masterLost = true;
+				mailbox.Close();
+				fromMaster.add("");
+			}
+		};
+		reader.setDaemon(true);
+		reader.start();
+
+		Thread heartbeat = new Thread() {
+			public void run() {
+				while (!masterLost) {
+					out.println("alive");
+					try { Thread.sleep(GameOfLifeUtils.HEARTBEAT); }
+					catch (InterruptedException e) { return; }
+				}
+			}
+		};
+		heartbeat.setDaemon(true);
+		heartbeat.start();
+	}
+
+
+
+	// The next line from the master. Throws a RecoveryException if the
+	// master asks us to recover (see Recover).
+	private String ReadLine() throws IOException
+	{
+		String line = null;
+		try {
+			line = fromMaster.poll(GameOfLifeUtils.TIMEOUT, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted waiting for the master");
+		}
+		if (line == null) throw new IOException("Timed out waiting for the master");
+		if (masterLost && line.equals("")) throw new IOException("Lost the master");
+		if (line.equals("recover")) {
+			recoverSeen = true;
+			throw new RecoveryException();
+		}
+		return line;
+	}
+
+
+
 	// Request neighbours and cell information from master.
 	//
 	// Method is synchronized for two reasons:
@@ -84,250 +197,497 @@ public class Worker
 	//   connected (this will block any neighbours trying to get cells).
 	private synchronized void GetSettings() throws IOException
 	{
-		String input;
-		neighbours = new Hashtable();
+		GetTile();
+		neighbourConnections.AwaitConnections(senders);
+		System.out.println("Worker (" + dataServer.getLocalSocketAddress() + ", " + workerPort + ") now has " + senders + " inbound neighbour connections");
+	}
 
-		GetNeighbours();
-		
+
+
+	// Gets the size and position of this worker's tile, and the generation
+	// it is at, from the master, then fills a new tile with the cells the
+	// master sends.
+	private void GetTile() throws IOException
+	{
 		out.println("rows");
-		int rows = Integer.parseInt(in.readLine());
+		String input = ReadLine();
+		if (input.equals("GameOver")) throw new EOFException("The run finished before this worker was needed");
+		int rows = Integer.parseInt(input);
 		out.println("cols");
-		int cols = Integer.parseInt(in.readLine());
-		currentCells = new Cell[rows][cols];
+		int cols = Integer.parseInt(ReadLine());
+		out.println("origin");
+		StringTokenizer st = new StringTokenizer(ReadLine(), ",");
+		originRow = Integer.parseInt(st.nextToken());
+		originCol = Integer.parseInt(st.nextToken());
+		out.println("halo");
+		int halo = Integer.parseInt(ReadLine());
+		out.println("generation");
+		generation = Integer.parseInt(ReadLine());
+		exchangeBase = generation;
+		GetPieces();
+		currentCells = new HaloTile(rows, cols, halo);
+		int threads = Integer.getInteger("gol.threads", 1);
+		if (threads > 1 && stepper == null) stepper = new ParallelStepper(threads);
+		currentCells.SetStepper(stepper);
 		out.println("cells");
 		while(true) {
-			input = in.readLine();
+			input = ReadLine();
 			if (input.equals("done")) break;
 			else {
 				Cell tmp = new Cell(input);
-				currentCells[(tmp.row % rows)][(tmp.col % cols)] = tmp;
+				currentCells.Set(tmp.row - originRow, tmp.col - originCol, tmp.hasLife);
 			}
 		}
-		while (neighbourConnections.GetLiveConnections().size() < 8 
-			&& neighbourConnections.GetLiveConnections().size() > 0);
-		System.out.println("Worker (" + dataServer.getLocalSocketAddress() + ", " + workerPort + ") now has 8 inbound neighbour connections");
+		reportedCells = new CellGrid(rows, cols);
+		for (int r = 0; r < rows; r++)
+		{
+			for (int w = 0; w < reportedCells.wordsPerRow; w++)
+				reportedCells.words[r * reportedCells.wordsPerRow + w] = currentCells.GetWord(r, w);
+		}
+		tileHash = GameOfLifeUtils.HashCells(reportedCells, originRow, originCol);
+		lastHalo = new HashMap<>();
+		stepNanos = 0;
+		steps = 0;
+		population = reportedCells.CountLiveCells();
+		changedSinceExchange = true;
+		quiescent = false;
+		unreported = false;
 	}
 
 
 
-	// Simply gets the port and host addresses of all this worker's 
-	// neighbouring workers and then attempts to connect to them.
-	private void GetNeighbours() throws IOException
+	// Gets the pieces of the other workers' halos that this worker's tile
+	// covers, and the pieces of its own halo, from the master:
+	//
+	//   send <host> <port> <piece>      for each piece we send, and who to
+	//   receive <host> <port> <piece>   for each piece we get, and who from
+	//   clear <row>,<col>,<rows>,<cols> for each part of the halo that's
+	//                                   outside the game space
+	//   done
+	//
+	// (see HaloPiece), and connects to any neighbours we now send to but
+	// aren't connected to yet.
+	private void GetPieces() throws IOException
 	{
-		String input = "";
-		System.out.println("Getting neighbours...");
-		out.println("neighbours");
-		input = in.readLine();
-		while(!input.equals("done")) {	
-			SetupNeighbourConnection(input);
-			input = in.readLine();
+		sends.clear();
+		sendLinks.clear();
+		receives.clear();
+		clears.clear();
+		HashSet<String> from = new HashSet<>();
+		out.println("pieces");
+		String input = ReadLine();
+		while(!input.equals("done")) {
+			String[] parts = input.split(" ", 4);
+			if (parts[0].equals("clear")) clears.add(HaloPiece.ParseRegion(parts[1]));
+			else if (parts[0].equals("receive")) {
+				receives.add(HaloPiece.Parse(parts[3]));
+				from.add(parts[1] + ", " + parts[2]);
+			} else if (parts[0].equals("send")) {
+				sends.add(HaloPiece.Parse(parts[3]));
+				sendLinks.add(GetNeighbourLink(parts[1], Integer.parseInt(parts[2])));
+			}
+			input = ReadLine();
 		}
+		senders = from.size();
 	}
 
 
 
-	// Connects to any available neighbours.
-	private void SetupNeighbourConnection(String neighbourCSV) throws IOException
+	// The link to the neighbour at an address, connecting to it first if
+	// there isn't one yet.
+	private NeighbourLink GetNeighbourLink(String address, int port) throws IOException
 	{
-		StringTokenizer st = new StringTokenizer(neighbourCSV, ",");
-		if (st.countTokens() == 3) {
-			String direction = st.nextToken().trim();
-			String address = st.nextToken().trim();
-			String port = st.nextToken().trim();
-			
-			System.out.println("Connecting to neighbour " + address + ", " + port + " to the " + direction);
-			Socket conn = new Socket(address, Integer.parseInt(port));
-			neighbours.put(direction, conn);
-		}
+		String key = address + ", " + port;
+		NeighbourLink link = neighbours.get(key);
+		if (link != null) return link;
+
+		System.out.println("Connecting to neighbour " + key);
+		Socket conn = new Socket(address, port);
+		link = new NeighbourLink(conn, metrics.GetLink("to " + address + ":" + port));
+		link.Negotiate(binaryHalo);
+		neighbours.put(key, link);
+		return link;
 	}
 
 
 
 	// Now having received cells, enter the "gamestate"
 	// loop:
-	// - Get cells from neighbours.
-	// - Make sure all 8 neighbours have received our boundaries.
-	// - Get the next state and send the cells to the master.
+	// - Wait for the neighbours to push their boundaries for this generation.
+	// - Get the next state.
+	// - Push our new boundaries to the neighbours straight away, then
+	//   send the cells to the master. Only the cells that have changed
+	//   since the last report are sent, unless the master asks for them
+	//   all with "nextStateFull".
+	//
+	// With a halo deeper than one cell, boundaries are only exchanged every
+	// "halo" generations.
+	//
+	// Anything that goes wrong short of losing the master (a neighbour
+	// going away, or the master asking us to recover) drops us into
+	// Recover.
 	private void GameOfLifeLoop() throws IOException
 	{
 		String input = "";
+		try {
+			SendBoundaries();
+		} catch (IOException e) {
+			Recover(e);
+		}
 		while(true) {
-			out.println("ready");
-			input = in.readLine();
-			if (input.equals("nextState")) {
-				Cell[][] tmpCells = GetNeighbourCells();
+			try {
+				out.println("ready");
+				input = ReadLine();
+				if (input.equals("nextState") || input.equals("nextStateFull")) {
+					Step();
+					SendCells(input.equals("nextStateFull"));
+				}
+				else if (input.startsWith("run")) {
+					StringTokenizer st = new StringTokenizer(input, " ");
+					st.nextToken();
+					Run(Integer.parseInt(st.nextToken()), Integer.parseInt(st.nextToken()));
+				}
+				else if (input.equals("tile")) Retile();
+				else if (input.equals("GameOver")) break;
+			} catch (IOException e) {
+				Recover(e);
+			}
+		}
+	}
 
-				while (GetReceivedNeighbours() < 8);
 
-				if (tmpCells == null) currentCells = GameOfLifeUtils.NextState(currentCells);
-				else NextState(tmpCells);
 
-				out.println("cells");
-				GameOfLifeUtils.PrintCells(currentCells, out);
-				out.println("done");
+	// Another worker has failed. Waits for the master to ask us to recover
+	// (if it hasn't already), then drops everything we had for the old
+	// tiles: the boundaries in the mailbox, the inbound connections (see
+	// HaloMailbox) and the outbound links. Once we've told the master we're
+	// "recovering" it hands out the tiles again, from its own copy of the
+	// space, and we start again from there.
+	//
+	// The master only sends the new tiles once every surviving worker has
+	// said it is recovering, so nobody connects to us before we've dropped
+	// the old connections. If another worker fails while this is going on
+	// we go round again.
+	private void Recover(IOException cause) throws IOException
+	{
+		while (true) {
+			if (masterLost || cause instanceof EOFException) throw cause;
+			System.out.println("Worker recovering after: " + cause);
+			try {
+				while (!recoverSeen) {
+					try {
+						ReadLine();
+					} catch (RecoveryException e) {}
+				}
+				recoverSeen = false;
+				mailbox.Reset();
+				for (NeighbourLink link: neighbours.values()) link.Close();
+				neighbours.clear();
+				out.println("recovering");
+				while (!ReadLine().equals("resume"));
+				GetTile();
+				SendBoundaries();
+				return;
+			} catch (IOException e) {
+				cause = e;
 			}
-			else if (input.equals("GameOver")) break;
 		}
 	}
 
 
 
-	// Count the number of updates that have been received by neighbours.
-	private int GetReceivedNeighbours()
+	// The master is moving the tiles' edges (see Master.FitSpace). Any
+	// boundaries pushed to us for this generation are for the old tiles,
+	// so they are drained first. The master waits for every worker to
+	// drain before handing out the new tiles, so no new boundary can be
+	// mixed up with an old one. Then boundaries for the new tile are pushed
+	// straight away, as at the start.
+	private void Retile() throws IOException
 	{
-		int count = 0;
-		ArrayList<WorkerConnection> connections= neighbourConnections.GetLiveConnections();
-		synchronized(connections) {
-			for(WorkerConnection n : connections) {
-				if (n.isDone()) count++;
-			}
+		if (IsExchangeGeneration()) mailbox.Take(generation, receives.size());
+		out.println("drained");
+		GetTile();
+		SendBoundaries();
+	}
+
+
+
+	// One generation: get the neighbours' boundaries if it's time to, work
+	// out the next state and push our own boundaries.
+	//
+	// If nothing changed at all between the last two exchanges and the
+	// neighbours have sent the same boundaries again, the tile is stuck
+	// where it is until the halo changes, so the generations up to the next
+	// exchange are skipped without stepping.
+	//
+	// The time spent getting and sending boundaries is counted in
+	// fetchTimes and sendTimes, and both together in exchangeTimes, a
+	// sample per generation that has either.
+	private void Step() throws IOException
+	{
+		long exchange = 0;
+		if (IsExchangeGeneration()) {
+			long start = System.nanoTime();
+			GetNeighbourCells();
+			exchange += System.nanoTime() - start;
+			fetchTimes.Record(exchange);
+			quiescent = haloUnchanged && !changedSinceExchange;
+			changedSinceExchange = false;
+		}
+
+		steps++;
+		if (quiescent) generation++;
+		else {
+			NextState();
+			changedSinceExchange |= currentCells.Changed();
+			unreported |= currentCells.Changed();
+		}
+		if (IsExchangeGeneration()) {
+			long start = System.nanoTime();
+			SendBoundaries();
+			long send = System.nanoTime() - start;
+			sendTimes.Record(send);
+			exchange += send;
 		}
-		return count;
+		if (exchange > 0) exchangeTimes.Record(exchange);
 	}
 
 
 
-	// REFACTOR ME - another class representing outbound connections.
-	private ArrayList<Cell> GetNeighbourCellBoundary(Direction d) throws IOException
+	// Free running mode - steps through "generations" generations without
+	// waiting on the master, and reports every "reportEvery" generations
+	// (and at the last one):
+	//
+	//   report <generation>
+	//   <a delta, as SendCells>
+	//
+	// The master answers each report with "continue" or "stop", but the
+	// answer is only read when the next report is due, so the master is
+	// never waited on unless it falls a whole report behind. Every worker
+	// reads the same answers at the same generations, so they all stop
+	// together.
+	private void Run(int generations, int reportEvery) throws IOException
 	{
-		ArrayList<Cell> tmpList = new ArrayList();
-
-		Socket sock = neighbours.get(d.toString());
-		if (null != sock) {
-			PrintWriter tmpOut = new PrintWriter(sock.getOutputStream(), true);
-			BufferedReader tmpIn = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-			tmpOut.println("getBoundary");
-			tmpOut.println(d); 
-			String input = "";	
-			while(true) {
-				input = tmpIn.readLine();
-				if (input.equals("done")) break;
-				else tmpList.add(new Cell(input));
+		int reports = 0;
+		for (int i = 1; i <= generations; i++)
+		{
+			Step();
+			if (i % reportEvery != 0 && i != generations) continue;
+
+			if (reports > 0 && ReadLine().equals("stop")) return;
+			out.println("report " + generation);
+			SendCells(false);
+			reports++;
+		}
+		if (reports > 0) ReadLine();
+	}
+
+
+
+	// Reports the cells to the master - either all of them, as row,col,hasLife
+	// lines, or as a delta:
+	//
+	//   delta
+	//   <row>,<word>,<hex>   for each 64 cell word of a row that has changed
+	//   done
+	//
+	// where rows and words are counted from this worker's origin. Either is
+	// followed by
+	//
+	//   load <nanoseconds> <generations> <population> <hash>
+	//
+	// the time spent stepping the tile over the generations since the last
+	// report, and how many live cells it has, which the master uses to
+	// balance the tiles (see Master.Rebalance), and the hash of the tile
+	// in hex, which it uses to spot cycles (see CycleDetector). The hash is
+	// kept up to date as each changed word is reported.
+	private void SendCells(boolean full) throws IOException
+	{
+		int wpr = reportedCells.wordsPerRow;
+		if (!full && !unreported) {
+			out.println("delta");
+			out.println("done");
+			SendLoad();
+			return;
+		}
+		population = 0;
+		unreported = false;
+		if (full) {
+			out.println("cells");
+			GameOfLifeUtils.PrintCells(currentCells, out, originRow, originCol);
+			out.println("done");
+		} else out.println("delta");
+
+		for (int r = 0; r < reportedCells.rows; r++)
+		{
+			for (int w = 0; w < wpr; w++)
+			{
+				long bits = currentCells.GetWord(r, w);
+				population += Long.bitCount(bits);
+				long reported = reportedCells.words[r * wpr + w];
+				if (bits == reported) continue;
+				tileHash ^= GameOfLifeUtils.HashWord(originRow + r, originCol + (w << 6), bits ^ reported);
+				reportedCells.words[r * wpr + w] = bits;
+				if (!full) out.println(r + "," + w + "," + Long.toHexString(bits));
 			}
 		}
-		return tmpList;
+		if (!full) out.println("done");
+		SendLoad();
+	}
+
+
+
+	private void SendLoad()
+	{
+		out.println("load " + stepNanos + " " + steps + " " + population + " " + Long.toHexString(tileHash));
+		stepNanos = 0;
+		steps = 0;
 	}
 
 
 
-	// Get the neighbour cells and shove them into a border around the
-	// set of cells received from the master.
-	private Cell[][] GetNeighbourCells() throws IOException
+	// Whether the halo is refreshed at the current generation.
+	private boolean IsExchangeGeneration()
 	{
-		Cell[][] borderCells = new Cell[currentCells.length+2][currentCells[0].length+2];
+		return ((generation - exchangeBase) % currentCells.halo) == 0;
+	}
 
-		for (int row = 0; row < currentCells.length; row++)
+
+
+	// Called by the inbound neighbour connections as boundaries arrive.
+	// "epoch" is the mailbox's epoch when the connection was opened.
+	public void ReceiveBoundary(HaloFrame f, int epoch)
+	{
+		mailbox.Put(f, epoch);
+	}
+
+
+
+	public int GetEpoch()
+	{
+		return mailbox.GetEpoch();
+	}
+
+
+
+	// The byte counter for a connection (see Metrics).
+	public LinkCounter GetLink(String name)
+	{
+		return metrics.GetLink(name);
+	}
+
+
+
+	// Pushes this worker's boundaries for the current generation to each
+	// of its neighbours, a piece at a time.
+	private void SendBoundaries() throws IOException
+	{
+		for (int i = 0; i < sends.size(); i++)
 		{
-			for (int col = 0; col < currentCells[row].length; col++)
-				borderCells[row+1][col+1] = currentCells[row][col];
+			HaloPiece p = sends.get(i);
+			NeighbourLink link = sendLinks.get(i);
+			if (link.isBinary()) link.SendBoundary(GetBoundaryFrame(p), null);
+			else link.SendBoundary(GetBoundaryFrame(p), GetBoundaryCells(p));
 		}
+	}
 
-		// REFACTOR ME
-		for (Direction d: Direction.values())
+
+
+	// Waits for the neighbours' boundaries for this generation and shoves
+	// them into the halo border around the set of cells received from the
+	// master. Parts of the halo outside the game space are cleared, so the
+	// tile is stepped as if there was nothing beyond it.
+	//
+	// The time spent waiting for the boundaries is counted in waitTimes.
+	private void GetNeighbourCells() throws IOException
+	{
+		long start = System.nanoTime();
+		HashMap<Integer, HaloFrame> frames = mailbox.Take(generation, receives.size());
+		waitTimes.Record(System.nanoTime() - start);
+
+		for (int[] region: clears) currentCells.ClearRegion(region);
+		for (HaloPiece p: receives)
 		{
-			ArrayList<Cell> tmpList = GetNeighbourCellBoundary(d);
-
-			Iterator<Cell> i = tmpList.iterator();
-			if (!i.hasNext()) return null;
-			if (d == Direction.NORTH) {
-				int c = 1;
-				while(i.hasNext()) borderCells[0][c++] = i.next();
-			} else if (d == Direction.NORTHEAST) {
-				borderCells[0][borderCells[0].length-1] = i.next();
-			} else if (d == Direction.EAST) {
-				int r = 1;
-				while(i.hasNext()) borderCells[r++][borderCells[0].length-1] = i.next();
-			} else if (d == Direction.SOUTHEAST) {
-				borderCells[borderCells.length-1][borderCells[0].length-1] = i.next();
-			} else if (d == Direction.SOUTH) {
-				int c = 1;
-				while(i.hasNext()) borderCells[borderCells.length-1][c++] = i.next();
-			} else if (d == Direction.SOUTHWEST) {
-				borderCells[borderCells.length-1][0] = i.next();
-			} else if (d == Direction.WEST) {
-				int r = 1;
-				while(i.hasNext()) borderCells[r++][0] = i.next();
-			} else if (d == Direction.NORTHWEST) {
-				borderCells[0][0] = i.next();
-			}
+			HaloFrame f = frames.get(p.id);
+			if (f == null || f.length != p.GetLength()) throw new IOException("Bad boundary piece " + p.id + " for generation " + generation);
+			currentCells.SetRegion(p.target, f.bits);
 		}
-		return borderCells;
+		haloUnchanged = UpdateLastHalo(frames);
 	}
 
 
 
-	// Gets the boundary cells based on the direction from which the request is
-	// coming. The boundary cells retrieved are those in the opposite direction
-	// to the direction.
-	public synchronized ArrayList<Cell> GetBoundaryCells(String direction)
+	// Remembers the boundaries used at this exchange and returns whether
+	// they are the same as at the last one.
+	private boolean UpdateLastHalo(HashMap<Integer, HaloFrame> frames)
 	{
-		ArrayList<Cell> list = new ArrayList();
-		Direction dir = null;
-		for (Direction d: Direction.values())
+		boolean same = true;
+		for (HaloPiece p: receives)
 		{
-			if (d.toString().equals(direction)) {
-				dir = d;
-				break;
-			}
+			long[] bits = frames.get(p.id).bits;
+			same &= Arrays.equals(bits, lastHalo.get(p.id));
+			lastHalo.put(p.id, bits);
 		}
-		if (dir == null) return list;
-		int row = dir.rows * -1;
-		int col = dir.cols * -1;
-
-		// HACK HACK HACK - ugly if-else chain.
-		//
-		// If row is -1 then top most row, if 1 bottom most.
-		// Same for columns.
-		if (row == -1 && col == -1) {
-			list.add(currentCells[0][0]);
-		} else if (row == -1 && col == 0) {
-			for (int c = 0; c < currentCells[0].length; c++) 
-				list.add(currentCells[0][c]);
-		} else if (row == -1 && col == 1) {
-			list.add(currentCells[0][currentCells[0].length-1]);
-		} else if (row == 0 && col == -1) {
-			for (int r = 0; r < currentCells.length; r++) 
-				list.add(currentCells[r][0]);
-		} else if (row == 0 && col == 1) {
-			for (int r = 0; r < currentCells.length; r++) 
-				list.add(currentCells[r][currentCells[0].length-1]);
-		} else if (row == 1 && col == -1) {
-			list.add(currentCells[currentCells.length-1][0]);
-		} else if (row == 1 && col == 0) {
-			for (int c = 0; c < currentCells[0].length; c++) 
-				list.add(currentCells[currentCells.length-1][c]);
-		} else if (row == 1 && col == 1) {
-			list.add(currentCells[currentCells.length-1][currentCells[0].length-1]);
+		return same;
+	}
+
+
+
+	// Gets the cells of this worker's tile that make up a piece of a
+	// neighbour's halo.
+	public synchronized HaloFrame GetBoundaryFrame(HaloPiece p)
+	{
+		HaloFrame f = new HaloFrame(p.id, generation, p.GetLength());
+		currentCells.GetRegion(p.source, f.bits);
+		return f;
+	}
+
+
+
+	// As GetBoundaryFrame, but as a list of cells, in row order.
+	public synchronized ArrayList<Cell> GetBoundaryCells(HaloPiece p)
+	{
+		ArrayList<Cell> list = new ArrayList();
+		int[] region = p.source;
+		for (int r = region[0]; r < region[0] + region[2]; r++)
+		{
+			for (int c = region[1]; c < region[1] + region[3]; c++)
+				list.add(GetCell(r, c));
 		}
 		return list;
 	}
 
 
 
-	// Creates a temporary cell set that has a "border" - this is simply
+	// Cell at row/col of this worker's cells, in game space coordinates.
+	private Cell GetCell(int row, int col)
+	{
+		return new Cell(row + originRow, col + originCol, currentCells.Get(row, col));
+	}
+
+
+
+	// The current cells already have a "border" - this is simply
 	// loaded from the boundary cells. The next state of the game is
-	// calculated from this set, and then the current set of cells are
-	// extracted from this border (and will eventually be sent back to 
+	// calculated from the cells and border into the tile's second buffer,
+	// which then becomes current (and will eventually be sent back to 
 	// the master).
-	private synchronized void NextState(Cell[][] temporaryCells) throws IOException
+	private synchronized void NextState() throws IOException
 	{
-		previousCells = currentCells;
-		currentCells = new Cell[previousCells.length][previousCells[0].length];
-		Cell[][] newCells = GameOfLifeUtils.NextState(temporaryCells);
-
-		for (int row = 0; row < currentCells.length; row++)
-		{
-			for (int col = 0; col < currentCells[row].length; col++)
-			{
-				currentCells[row][col] = newCells[row+1][col+1];
-			}
-		}
+		long start = System.nanoTime();
+		currentCells.Step(currentCells.halo - 1 - ((generation - exchangeBase) % currentCells.halo));
+		long nanos = System.nanoTime() - start;
+		stepNanos += nanos;
+		computeTimes.Record(nanos);
+		generation++;
 	}
 
 
 
 	private void CloseConnections() throws IOException
 	{
+		if (stepper != null) stepper.Shutdown();
+		metrics.Stop();
 		out.close();
 		in.close();
 		masterConnection.close();
@@ -346,6 +706,7 @@ public class Worker
 			w.EstablishConnections();
 			w.GetSettings();
 			w.GameOfLifeLoop();
+			w.metrics.PrintTiming();
 			w.CloseConnections();
 		} catch (IOException e) {
 			System.err.println(e);
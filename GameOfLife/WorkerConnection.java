@@ -3,6 +3,7 @@
 // Connection between one worker and another.
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
 
 
@@ -11,50 +12,84 @@ public class WorkerConnection extends Thread
 {
 	private Socket neighbourChannel = null;
 	private Worker worker = null;
-	private PrintWriter out = null;
 	private BufferedReader in = null;
-	private boolean isReady = false;
-	private boolean isDone = false;
+	private boolean binary = false;
+	private int epoch = 0;
+	private volatile boolean isReady = false;
+	private CountDownLatch ready = new CountDownLatch(1);
 
 
 
 	public WorkerConnection(Worker worker, Socket neighbour)
 	{
 		this.worker = worker;
+		this.epoch = worker.GetEpoch();
 		neighbourChannel = neighbour;
 	}
 
 
 
+	// Agrees on binary or text framing with the neighbour (see HaloFrame),
+	// then files each boundary it pushes in the worker's mailbox. The
+	// neighbour is only known by the address it connected from, which
+	// names the connection's byte counter.
 	public void EstablishChannels() throws IOException
 	{
-		out = new PrintWriter(neighbourChannel.getOutputStream(), true);
-		in = new BufferedReader(new InputStreamReader(neighbourChannel.getInputStream()));
+		LinkCounter link = worker.GetLink("from " + neighbourChannel.getInetAddress().getHostAddress() + ":" + neighbourChannel.getPort());
+		DataInputStream dataIn = new DataInputStream(new BufferedInputStream(link.Count(neighbourChannel.getInputStream())));
+		DataOutputStream dataOut = new DataOutputStream(new BufferedOutputStream(link.Count(neighbourChannel.getOutputStream())));
 		isReady = true;
+		ready.countDown();
+
+		String input = HaloFrame.ReadLine(dataIn);
+		if (input != null && input.startsWith("halo")) {
+			binary = input.equals("halo binary " + HaloFrame.VERSION);
+			if (binary) dataOut.writeBytes("ok binary " + HaloFrame.VERSION + "\n");
+			else dataOut.writeBytes("ok text\n");
+			dataOut.flush();
+			input = null;
+		}
+
+		if (binary) ReceiveBinary(dataIn);
+		else ReceiveText(dataIn, input);
+	}
+
+
 
-		String input = "";
+	private void ReceiveBinary(DataInputStream dataIn) throws IOException
+	{
 		while(true) {
-			input = in.readLine();
-			isDone = false;
-			if (input.equals("getBoundary")) {
-				input = in.readLine();
-				ArrayList<Cell> list = worker.GetBoundaryCells(input);
-
-				for (Cell c : list) { 
-					if (c == null) System.out.println("Null cell found!"); 
-					else out.println(c.toCSV()); 
-				}
-				out.println("done");
-				isDone = true;
-			}
+			HaloFrame f = null;
+			try {
+				f = HaloFrame.Read(dataIn);
+			} catch (EOFException e) { break; }
+			worker.ReceiveBoundary(f, epoch);
 		}
 	}
 
 
 
-	public boolean isDone()
+	// Text protocol - "input" is a line that has already been read from
+	// the stream, if any.
+	private void ReceiveText(DataInputStream dataIn, String input) throws IOException
 	{
-		return isDone;		
+		in = new BufferedReader(new InputStreamReader(dataIn));
+
+		while(true) {
+			if (input == null) input = in.readLine();
+			if (input == null) break;
+			if (input.equals("boundary")) {
+				int piece = Integer.parseInt(in.readLine());
+				int generation = Integer.parseInt(in.readLine());
+				ArrayList<Cell> list = new ArrayList<>();
+				while(!(input = in.readLine()).equals("done")) list.add(new Cell(input));
+
+				HaloFrame f = new HaloFrame(piece, generation, list.size());
+				for (int i = 0; i < list.size(); i++) f.Set(i, list.get(i).hasLife);
+				worker.ReceiveBoundary(f, epoch);
+			}
+			input = null;
+		}
 	}
 
 
@@ -66,23 +101,30 @@ public class WorkerConnection extends Thread
 
 
 
+	// Waits until the connection's streams are set up. Returns false if
+	// that failed.
+	public boolean AwaitReady() throws IOException
+	{
+		GameOfLifeUtils.Await(ready, "neighbour connection");
+		return isReady;
+	}
+
+
+
 	public void CloseChannels() throws IOException
 	{
-		out.close();
-		in.close();
 		neighbourChannel.close();		
 	}
 
 
 
 	public void run() {
-		PrintWriter out = null;
-		BufferedReader in = null;
-
 		try {
 			EstablishChannels();
 		} catch (IOException e) {
 			System.err.println(e);
+		} finally {
+			ready.countDown();
 		}
 	}
 }
@@ -5,10 +5,12 @@
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 public class WorkerConnectionHandler extends Thread
 {
 	public ArrayList<WorkerConnection> liveConnections = new ArrayList();
+	public Semaphore arrivals = new Semaphore(0);
 	public ServerSocket socket = null;
 	public Worker worker;
 
@@ -28,9 +30,11 @@ public class WorkerConnectionHandler extends Thread
 				System.out.println("Connection accepted " + neighbour);
 				WorkerConnection w = new WorkerConnection(worker, neighbour);
 				w.start();
-				while(w.isReady() == false);
-				synchronized(liveConnections) {
-					liveConnections.add(w);
+				if (w.AwaitReady()) {
+					synchronized(liveConnections) {
+						liveConnections.add(w);
+					}
+					arrivals.release();
 				}
 			}
 		} catch (IOException e) {
@@ -40,6 +44,15 @@ public class WorkerConnectionHandler extends Thread
 
 
 
+	// Blocks until "count" neighbours have connected.
+	public void AwaitConnections(int count) throws IOException
+	{
+		GameOfLifeUtils.Await(arrivals, count, "neighbour connections");
+		arrivals.release(count);
+	}
+
+
+
 	public ArrayList<WorkerConnection> GetLiveConnections()
 	{
 		return liveConnections;
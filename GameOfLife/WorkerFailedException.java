@@ -0,0 +1,19 @@
+// Copyright David Petrie 2008
+//
+// Thrown on the master when a worker stops answering (see
+// Master.Fail), or when a worker that was asked to recover from another
+// worker's failure says it has dropped what it was doing. Either way the
+// master has to hand the tiles out again (see Master.Recover).
+import java.io.*;
+
+public class WorkerFailedException extends IOException
+{
+	private static final long serialVersionUID = 1L;
+
+
+
+	public WorkerFailedException(String message)
+	{
+		super(message);
+	}
+}
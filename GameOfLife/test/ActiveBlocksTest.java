@@ -0,0 +1,69 @@
+// Copyright David Petrie 2008
+//
+// Checks that stepping a tile with its work split into strips over a pool
+// of threads (see ActiveBlocks) gives the same cells as stepping it on the
+// calling thread, for tiles smaller than a block, a block or two high, and
+// not a whole number of words wide.
+import static org.junit.Assert.*;
+
+import java.util.*;
+import org.junit.*;
+
+public class ActiveBlocksTest
+{
+	public static final int[][] SIZES = { { 1, 1 }, { 10, 300 }, { 63, 65 }, { 100, 100 }, { 130, 70 }, { 257, 513 } };
+	public static final int GENERATIONS = 200;
+
+	private static ParallelStepper stepper = null;
+
+
+
+	@BeforeClass
+	public static void StartStepper()
+	{
+		stepper = new ParallelStepper(4);
+	}
+
+
+
+	@AfterClass
+	public static void StopStepper()
+	{
+		stepper.Shutdown();
+	}
+
+
+
+	@Test
+	public void StripsMatchOneThread()
+	{
+		for (int[] size: SIZES)
+		{
+			int rows = size[0], cols = size[1];
+			HaloTile alone = new HaloTile(rows, cols, 1);
+			HaloTile shared = new HaloTile(rows, cols, 1);
+			shared.SetStepper(stepper);
+			Random random = new Random(rows * 31 + cols);
+			for (int r = 0; r < rows; r++)
+			{
+				for (int c = 0; c < cols; c++)
+				{
+					boolean live = random.nextInt(3) == 0;
+					alone.Set(r, c, live);
+					shared.Set(r, c, live);
+				}
+			}
+
+			for (int g = 0; g < GENERATIONS; g++)
+			{
+				alone.Step(0);
+				shared.Step(0);
+				for (int r = 0; r < rows; r++)
+				{
+					for (int c = 0; c < cols; c++)
+						assertEquals(rows + " x " + cols + " at generation " + g, alone.Get(r, c), shared.Get(r, c));
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,145 @@
+// Copyright David Petrie 2008
+//
+// Checks that a checkpoint (see Checkpoint) reads back as it was written,
+// and that one damaged on disk, by a flipped byte or by being cut short,
+// is rejected rather than read.
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import org.junit.*;
+import org.junit.rules.*;
+
+public class CheckpointTest
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+
+
+	@Test
+	public void ReadsWhatWasWritten() throws IOException
+	{
+		Checkpoint c = Sample(new Random(2008));
+		String path = Path();
+		c.Write(path);
+		assertFalse(new File(path + ".tmp").exists());
+
+		Checkpoint d = Checkpoint.Read(path);
+		assertEquals(c.generation, d.generation);
+		assertEquals(c.spaceRow, d.spaceRow);
+		assertEquals(c.spaceCol, d.spaceCol);
+		assertEquals(c.minRows, d.minRows);
+		assertEquals(c.minCols, d.minCols);
+		assertEquals(c.unbounded, d.unbounded);
+		assertTrue(c.cells.equals(d.cells));
+		assertFalse(d.partition.equals(Partition.Balanced(200, 300, 4, false)));
+		assertTrue(c.partition.equals(d.partition));
+	}
+
+
+
+	@Test
+	public void ReadsWithoutAPartition() throws IOException
+	{
+		Checkpoint c = Sample(new Random(2009));
+		c.partition = null;
+		String path = Path();
+		c.Write(path);
+
+		Checkpoint d = Checkpoint.Read(path);
+		assertNull(d.partition);
+		assertTrue(c.cells.equals(d.cells));
+	}
+
+
+
+	@Test
+	public void ReplacesTheLastCheckpoint() throws IOException
+	{
+		Random random = new Random(2010);
+		String path = Path();
+		Sample(random).Write(path);
+		Checkpoint c = Sample(random);
+		c.generation++;
+		c.Write(path);
+		Checkpoint d = Checkpoint.Read(path);
+		assertEquals(c.generation, d.generation);
+		assertTrue(c.cells.equals(d.cells));
+	}
+
+
+
+	@Test
+	public void RejectsAFlippedByte() throws IOException
+	{
+		String path = Path();
+		Sample(new Random(2011)).Write(path);
+		byte[] good = Files.readAllBytes(Paths.get(path));
+		for (int i: new int[] { 0, 9, 40, good.length / 2, good.length - 9, good.length - 1 })
+		{
+			byte[] bad = good.clone();
+			bad[i] ^= 0x10;
+			Files.write(Paths.get(path), bad);
+			try {
+				Checkpoint.Read(path);
+				fail("Read a checkpoint with byte " + i + " of " + good.length + " flipped");
+			} catch (IOException e) {
+				assertTrue(e.getMessage(), e.getMessage().contains("corrupt"));
+			}
+		}
+	}
+
+
+
+	@Test
+	public void RejectsATruncatedFile() throws IOException
+	{
+		String path = Path();
+		Sample(new Random(2012)).Write(path);
+		long size = new File(path).length();
+		for (long cut: new long[] { 1, 8, size / 2, size - 4 })
+		{
+			FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.WRITE);
+			try {
+				channel.truncate(size - cut);
+			} finally {
+				channel.close();
+			}
+			try {
+				Checkpoint.Read(path);
+				fail("Read a checkpoint cut short by " + cut + " bytes");
+			} catch (IOException e) {}
+			Sample(new Random(2012)).Write(path);
+		}
+	}
+
+
+
+	// A checkpoint of an unbounded space with live cells in several chunks,
+	// negative rows and columns included, and a partition whose tiles
+	// aren't all the same size.
+	private static Checkpoint Sample(Random random)
+	{
+		SparseGrid cells = new SparseGrid(200, 300);
+		for (int i = 0; i < 3000; i++)
+			cells.Set(random.nextInt(260) - 30, random.nextInt(360) - 30, true);
+		Checkpoint c = new Checkpoint(1234, cells);
+		c.spaceRow = -30;
+		c.spaceCol = -17;
+		c.minRows = 100;
+		c.minCols = 120;
+		c.unbounded = true;
+		c.partition = Partition.Balanced(200, 300, 4, false).Rebalanced(new double[] { 1, 3, 2, 1 }, 8);
+		return c;
+	}
+
+
+
+	private String Path() throws IOException
+	{
+		return new File(folder.getRoot(), "run.checkpoint").getPath();
+	}
+}
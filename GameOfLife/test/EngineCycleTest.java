@@ -0,0 +1,75 @@
+// Copyright David Petrie 2008
+//
+// Checks the cycles found when the master runs the game locally (see
+// Master.RunLocally): the hash of the whole space has to come round, not
+// just the part of it that is printed.
+//
+// Acorn settles down by generation 5206 but keeps sending gliders off
+// across the unbounded space, so it never repeats, though the cells
+// around where it started and the population stop changing. A blinker
+// repeats every 2 generations on every engine.
+import static org.junit.Assert.*;
+
+import org.junit.*;
+
+public class EngineCycleTest
+{
+	public static final String[] ACORN = { ".O.....", "...O...", "OO..OOO" };
+	public static final String[] BLINKER = { "OOO" };
+
+
+
+	@Test
+	public void AcornNeverRepeatsOnSparse()
+	{
+		assertEquals(-1, FindCycle(new SparseEngine(), ACORN, 1000, 8000));
+	}
+
+
+
+	@Test
+	public void AcornNeverRepeatsOnHashLife()
+	{
+		assertEquals(-1, FindCycle(new HashLifeEngine(64), ACORN, 1000, 8000));
+	}
+
+
+
+	@Test
+	public void BlinkerRepeats()
+	{
+		assertEquals(2, FindCycle(new SparseEngine(), BLINKER, 1, 100));
+		assertEquals(2, FindCycle(new HashLifeEngine(64), BLINKER, 1, 100));
+		assertEquals(2, FindCycle(new GridEngine(16, 16), BLINKER, 1, 100));
+	}
+
+
+
+	// Steps the pattern "step" generations at a time up to "generations",
+	// as RunLocally does, and returns the period of the first cycle found,
+	// or -1 if there isn't one.
+	private static int FindCycle(LifeEngine e, String[] pattern, int step, int generations)
+	{
+		e.Load(Pattern(pattern), 4, 4);
+		CycleDetector cycles = new CycleDetector(1024);
+		cycles.Add(0, e.GetHash());
+		while (e.GetGeneration() < generations) {
+			e.Step(step);
+			if (cycles.Add((int)e.GetGeneration(), e.GetHash())) return cycles.GetPeriod();
+		}
+		return -1;
+	}
+
+
+
+	private static CellGrid Pattern(String[] rows)
+	{
+		CellGrid g = new CellGrid(rows.length, rows[0].length());
+		for (int r = 0; r < rows.length; r++)
+		{
+			for (int c = 0; c < rows[r].length(); c++)
+				g.Set(r, c, rows[r].charAt(c) == 'O');
+		}
+		return g;
+	}
+}
@@ -0,0 +1,69 @@
+// Copyright David Petrie 2008
+//
+// Checks that frames read back as they were written, and that a frame
+// with a length no worker would send is rejected before anything is
+// allocated for it.
+import static org.junit.Assert.*;
+
+import java.io.*;
+import org.junit.*;
+
+public class HaloFrameTest
+{
+	@Test
+	public void ReadsWhatWasWritten() throws IOException
+	{
+		HaloFrame f = new HaloFrame(3, 9, 70);
+		f.Set(0, true);
+		f.Set(69, true);
+		HaloFrame g = HaloFrame.Read(Stream(Bytes(f)));
+		assertEquals(3, g.piece);
+		assertEquals(9, g.generation);
+		assertEquals(70, g.length);
+		assertArrayEquals(f.bits, g.bits);
+	}
+
+
+
+	@Test(expected = IOException.class)
+	public void RejectsNegativeLength() throws IOException
+	{
+		HaloFrame.Read(Stream(Header(-5)));
+	}
+
+
+
+	@Test(expected = IOException.class)
+	public void RejectsHugeLength() throws IOException
+	{
+		HaloFrame.Read(Stream(Header(Integer.MAX_VALUE)));
+	}
+
+
+
+	private static byte[] Bytes(HaloFrame f) throws IOException
+	{
+		ByteArrayOutputStream b = new ByteArrayOutputStream();
+		f.Write(new DataOutputStream(b));
+		return b.toByteArray();
+	}
+
+
+
+	private static byte[] Header(int length) throws IOException
+	{
+		ByteArrayOutputStream b = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(b);
+		out.writeInt(3);
+		out.writeInt(9);
+		out.writeInt(length);
+		return b.toByteArray();
+	}
+
+
+
+	private static DataInputStream Stream(byte[] bytes)
+	{
+		return new DataInputStream(new ByteArrayInputStream(bytes));
+	}
+}
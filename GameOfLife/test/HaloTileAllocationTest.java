@@ -0,0 +1,48 @@
+// Copyright David Petrie 2008
+//
+// Checks that stepping a worker's tile on the calling thread doesn't
+// allocate anything (see HaloTile), by asking the JVM how many bytes the
+// thread has allocated before and after a run of steps.
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+import java.lang.management.*;
+import java.util.*;
+import org.junit.*;
+
+public class HaloTileAllocationTest
+{
+	public static final int SIZE = 256;
+	public static final int WARM_UP = 2000;
+	public static final int STEPS = 1000;
+
+
+
+	@Test
+	public void StepDoesNotAllocate()
+	{
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean)threads;
+		assumeTrue(bean.isThreadAllocatedMemorySupported());
+		bean.setThreadAllocatedMemoryEnabled(true);
+		long id = Thread.currentThread().getId();
+
+		// a soup that keeps changing for longer than the test runs
+		HaloTile tile = new HaloTile(SIZE, SIZE, 1);
+		Random random = new Random(2008);
+		for (int r = -1; r <= SIZE; r++)
+		{
+			for (int c = -1; c <= SIZE; c++)
+				tile.Set(r, c, random.nextInt(3) == 0);
+		}
+
+		for (int i = 0; i < WARM_UP; i++) tile.Step(0);
+		bean.getThreadAllocatedBytes(id);
+		long before = bean.getThreadAllocatedBytes(id);
+		for (int i = 0; i < STEPS; i++) tile.Step(0);
+		long after = bean.getThreadAllocatedBytes(id);
+
+		assertEquals("Bytes allocated over " + STEPS + " steps", 0, after - before);
+	}
+}
@@ -0,0 +1,147 @@
+// Copyright David Petrie 2008
+//
+// Checks the bit-sliced next state kernel (CellGrid.NextState) against
+// the rules applied a cell at a time, on random soups.
+//
+// The widths are chosen around word boundaries (1, 63, 64, 65 and 130
+// columns), since that is where the carries between neighbouring words
+// and the clearing of the bits past the last column come in. The kernel
+// treats cells outside the grid as dead; the wrapped space of GridEngine
+// is checked against the rules on a torus, which takes the halo filled
+// from the opposite edges into partly used words.
+import static org.junit.Assert.*;
+
+import java.util.*;
+import org.junit.*;
+
+public class NextStateTest
+{
+	public static final int[] ROWS = { 1, 2, 3, 17, 64, 65 };
+	public static final int[] COLS = { 1, 2, 63, 64, 65, 130 };
+	public static final int GENERATIONS = 20;
+
+
+
+	@Test
+	public void KernelMatchesRules()
+	{
+		Random random = new Random(2008);
+		for (int rows: ROWS)
+		{
+			for (int cols: COLS)
+			{
+				CellGrid cells = Soup(random, rows, cols);
+				for (int g = 0; g < GENERATIONS; g++)
+				{
+					CellGrid expected = Rules(cells, false);
+					CellGrid out = new CellGrid(rows, cols);
+					CellGrid.NextState(cells, out);
+					AssertSame(rows + " x " + cols + " at generation " + g, expected, out);
+					AssertSame(rows + " x " + cols + " at generation " + g, expected, GameOfLifeUtils.NextState(cells));
+					cells = out;
+				}
+			}
+		}
+	}
+
+
+
+	@Test
+	public void KernelReportsChanges()
+	{
+		Random random = new Random(2009);
+		for (int cols: COLS)
+		{
+			CellGrid cells = Soup(random, 40, cols);
+			for (int g = 0; g < GENERATIONS * 5; g++)
+			{
+				CellGrid out = new CellGrid(cells.rows, cols);
+				boolean changed = CellGrid.NextState(cells, out, 0, cells.rows, 0, cells.wordsPerRow);
+				assertEquals(cols + " columns at generation " + g, !out.equals(cells), changed);
+				cells = out;
+			}
+		}
+	}
+
+
+
+	@Test
+	public void WrappedSpaceMatchesRulesOnATorus()
+	{
+		Random random = new Random(2010);
+		for (int rows: ROWS)
+		{
+			for (int cols: COLS)
+			{
+				if (rows < 3 || cols < 3) continue;
+				CellGrid cells = Soup(random, rows, cols);
+				GridEngine engine = new GridEngine(rows, cols);
+				engine.Load(cells, 0, 0);
+				for (int g = 0; g < GENERATIONS; g++)
+				{
+					cells = Rules(cells, true);
+					engine.Step(1);
+					AssertSame(rows + " x " + cols + " at generation " + g, cells, engine.Snapshot(0, 0, rows, cols));
+				}
+			}
+		}
+	}
+
+
+
+	// The next state of every cell, counting its neighbours one by one.
+	// With "wrap" the grid is a torus, otherwise cells outside it are dead.
+	private static CellGrid Rules(CellGrid in, boolean wrap)
+	{
+		CellGrid out = new CellGrid(in.rows, in.cols);
+		for (int r = 0; r < in.rows; r++)
+		{
+			for (int c = 0; c < in.cols; c++)
+			{
+				int count = 0;
+				for (int dr = -1; dr <= 1; dr++)
+				{
+					for (int dc = -1; dc <= 1; dc++)
+					{
+						if (dr == 0 && dc == 0) continue;
+						int nr = r + dr, nc = c + dc;
+						if (wrap) {
+							nr = (nr + in.rows) % in.rows;
+							nc = (nc + in.cols) % in.cols;
+						} else if (nr < 0 || nr >= in.rows || nc < 0 || nc >= in.cols) continue;
+						if (in.Get(nr, nc)) count++;
+					}
+				}
+				out.Set(r, c, count == 3 || (count == 2 && in.Get(r, c)));
+			}
+		}
+		return out;
+	}
+
+
+
+	private static CellGrid Soup(Random random, int rows, int cols)
+	{
+		CellGrid g = new CellGrid(rows, cols);
+		for (int r = 0; r < rows; r++)
+		{
+			for (int c = 0; c < cols; c++)
+				g.Set(r, c, random.nextInt(3) == 0);
+		}
+		return g;
+	}
+
+
+
+	// Compares cell by cell, then word by word, so that stray bits past the
+	// last column are caught too.
+	private static void AssertSame(String what, CellGrid expected, CellGrid actual)
+	{
+		for (int r = 0; r < expected.rows; r++)
+		{
+			for (int c = 0; c < expected.cols; c++)
+				assertEquals(what + ", cell " + r + "," + c, expected.Get(r, c), actual.Get(r, c));
+		}
+		assertArrayEquals(what, expected.words, actual.words);
+	}
+}
@@ -0,0 +1,228 @@
+// Copyright David Petrie 2008
+//
+// Checks that every frame written to a run log (see RunLog) reads back
+// through RunLogReader as it was written, whichever order the frames are
+// asked for in, both for a window of the space that stays put and for one
+// that moves and changes size as an unbounded run's does.
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import org.junit.*;
+import org.junit.rules.*;
+
+public class RunLogTest
+{
+	public static final int GENERATIONS = 60;
+	public static final int KEYFRAME_EVERY = 7;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+
+
+	@Test
+	public void FixedWindowReadsBack() throws IOException
+	{
+		Random random = new Random(2008);
+		ArrayList<Frame> frames = new ArrayList<>();
+		CellGrid cells = Soup(random, 50, 130);
+		for (int g = 0; g < GENERATIONS; g++)
+		{
+			frames.add(new Frame(g, cells, 0, 0));
+			cells = GameOfLifeUtils.NextState(cells);
+		}
+		String path = Write(frames, true);
+
+		RunLogReader log = new RunLogReader(path);
+		assertEquals(RunLog.RULE, log.rule);
+		assertTrue(log.fixed);
+		assertEquals(50, log.rows);
+		assertEquals(130, log.cols);
+		assertEquals(KEYFRAME_EVERY, log.keyframeEvery);
+		CheckFrames(log, frames);
+		assertFalse(Print(path).contains("Space at"));
+	}
+
+
+
+	@Test
+	public void MovingWindowReadsBack() throws IOException
+	{
+		Random random = new Random(2009);
+		ArrayList<Frame> frames = new ArrayList<>();
+		SparseGrid space = new SparseGrid(0, 0);
+		SparseGrid next = new SparseGrid(0, 0);
+		space.CopyRegion(Soup(random, 40, 40), 0, 0, -20, -20, 40, 40);
+		int row = -30, col = -30, rows = 60, cols = 60;
+		for (int g = 0; g < GENERATIONS; g++)
+		{
+			// the window moves most generations, and grows now and then
+			if (g % 4 != 0) {
+				row += random.nextInt(3) - 1;
+				col += random.nextInt(3) - 1;
+			}
+			if (g % 9 == 8) {
+				rows += 3;
+				cols += 70;
+			}
+			frames.add(new Frame(g, space.Snapshot(row, col, rows, cols), row, col));
+			SparseGrid.NextState(space, next);
+			SparseGrid tmp = space;
+			space = next;
+			next = tmp;
+		}
+		String path = Write(frames, false);
+
+		RunLogReader log = new RunLogReader(path);
+		assertFalse(log.fixed);
+		CheckFrames(log, frames);
+		String text = Print(path);
+		for (Frame f: frames)
+			assertTrue(text.contains("Cells at " + f.generation + "\nSpace at " + f.row + "," + f.col + "\n"));
+	}
+
+
+
+	@Test
+	public void FramesBiggerThanTheBufferReadBack() throws IOException
+	{
+		Random random = new Random(2010);
+		ArrayList<Frame> frames = new ArrayList<>();
+		CellGrid cells = Soup(random, 1100, 8192);
+		for (int g = 0; g < 3; g++)
+		{
+			frames.add(new Frame(g, cells, 0, 0));
+			cells = GameOfLifeUtils.NextState(cells);
+		}
+		CheckFrames(new RunLogReader(Write(frames, true)), frames);
+	}
+
+
+
+	@Test
+	public void FrameCutShortIsLeftOut() throws IOException
+	{
+		Random random = new Random(2011);
+		ArrayList<Frame> frames = new ArrayList<>();
+		CellGrid cells = Soup(random, 30, 70);
+		for (int g = 0; g < 10; g++)
+		{
+			frames.add(new Frame(g, cells, 0, 0));
+			cells = GameOfLifeUtils.NextState(cells);
+		}
+		String path = Write(frames, true);
+		FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.WRITE);
+		try {
+			channel.truncate(channel.size() - 3);
+		} finally {
+			channel.close();
+		}
+
+		RunLogReader log = new RunLogReader(path);
+		assertEquals(frames.size() - 1, log.GetFrameCount());
+		CheckFrames(log, frames.subList(0, frames.size() - 1));
+	}
+
+
+
+	// Reads the frames back in order, then one at a time in a random order
+	// (so some are reached from a keyframe and some from the frame before),
+	// then a range from the middle, as RunLogReader.main does.
+	private static void CheckFrames(RunLogReader log, List<Frame> frames) throws IOException
+	{
+		assertEquals(frames.size(), log.GetFrameCount());
+		CellGrid cells = log.Seek(frames.get(0).generation);
+		for (Frame f: frames)
+		{
+			Check(log, cells, f);
+			cells = log.Next();
+		}
+		assertNull(cells);
+
+		ArrayList<Frame> shuffled = new ArrayList<>(frames);
+		Collections.shuffle(shuffled, new Random(frames.size()));
+		for (Frame f: shuffled)
+			Check(log, log.Seek(f.generation), f);
+
+		int from = frames.size() / 3, to = frames.size() * 2 / 3;
+		cells = log.Seek(frames.get(from).generation);
+		for (int i = from; i <= to; i++)
+		{
+			Check(log, cells, frames.get(i));
+			cells = log.Next();
+		}
+	}
+
+
+
+	private static void Check(RunLogReader log, CellGrid cells, Frame f)
+	{
+		String what = "generation " + f.generation;
+		assertEquals(what, f.generation, log.GetGeneration());
+		assertEquals(what, f.row, log.GetRow());
+		assertEquals(what, f.col, log.GetCol());
+		assertTrue(what, f.cells.equals(cells));
+	}
+
+
+
+	private String Write(List<Frame> frames, boolean fixed) throws IOException
+	{
+		String path = folder.newFile().getPath();
+		Frame first = frames.get(0);
+		RunLog log = new RunLog(path, fixed, first.cells.rows, first.cells.cols, KEYFRAME_EVERY);
+		for (Frame f: frames) log.Write(f.generation, f.cells, f.row, f.col);
+		log.Close();
+		return path;
+	}
+
+
+
+	// What RunLogReader prints for the whole log.
+	private static String Print(String path)
+	{
+		PrintStream out = System.out;
+		ByteArrayOutputStream text = new ByteArrayOutputStream();
+		System.setOut(new PrintStream(text, true));
+		try {
+			RunLogReader.main(new String[] { path });
+		} finally {
+			System.setOut(out);
+		}
+		return text.toString().replace(System.getProperty("line.separator"), "\n");
+	}
+
+
+
+	private static CellGrid Soup(Random random, int rows, int cols)
+	{
+		CellGrid g = new CellGrid(rows, cols);
+		for (int r = 0; r < rows; r++)
+		{
+			for (int c = 0; c < cols; c += 64)
+				g.SetWord(r, c, random.nextLong() & random.nextLong(), Math.min(64, cols - c));
+		}
+		return g;
+	}
+
+
+
+	private static class Frame
+	{
+		final int generation;
+		final CellGrid cells;
+		final int row;
+		final int col;
+
+		Frame(int generation, CellGrid cells, int row, int col)
+		{
+			this.generation = generation;
+			this.cells = cells;
+			this.row = row;
+			this.col = col;
+		}
+	}
+}
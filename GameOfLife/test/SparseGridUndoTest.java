@@ -0,0 +1,82 @@
+// Copyright David Petrie 2008
+//
+// Checks that undoing the changes logged by a SparseGrid (see
+// SparseGrid.StartUndo) puts back exactly the cells there were, chunks
+// that came and went included.
+import static org.junit.Assert.*;
+
+import java.util.*;
+import org.junit.*;
+
+public class SparseGridUndoTest
+{
+	@Test
+	public void UndoPutsBackTheCells()
+	{
+		Random random = new Random(2008);
+		SparseGrid g = Soup(random);
+		SparseGrid before = g.Copy();
+		g.StartUndo();
+		Scribble(g, random);
+		assertFalse(g.equals(before));
+		g.Undo();
+		assertTrue(g.equals(before));
+	}
+
+
+
+	@Test
+	public void UndoCarriesOnLogging()
+	{
+		Random random = new Random(2009);
+		SparseGrid g = Soup(random);
+		g.StartUndo();
+		Scribble(g, random);
+		g.Undo();
+		SparseGrid before = g.Copy();
+		Scribble(g, random);
+		g.Undo();
+		assertTrue(g.equals(before));
+	}
+
+
+
+	@Test
+	public void NothingToUndoOnceStopped()
+	{
+		Random random = new Random(2010);
+		SparseGrid g = Soup(random);
+		g.StartUndo();
+		Scribble(g, random);
+		g.StopUndo();
+		SparseGrid after = g.Copy();
+		g.Undo();
+		assertTrue(g.equals(after));
+	}
+
+
+
+	// Cells scattered over a few chunks, negative ones included.
+	private static SparseGrid Soup(Random random)
+	{
+		SparseGrid g = new SparseGrid(256, 256);
+		for (int i = 0; i < 2000; i++)
+			g.Set(random.nextInt(256) - 64, random.nextInt(256) - 64, true);
+		return g;
+	}
+
+
+
+	// Words written at any alignment, clearing whole chunks and making new
+	// ones, and some of them over and over.
+	private static void Scribble(SparseGrid g, Random random)
+	{
+		for (int i = 0; i < 3000; i++)
+		{
+			long bits = (i % 3 == 0) ? 0L : random.nextLong();
+			g.SetWord(random.nextInt(512) - 128, random.nextInt(512) - 128, bits, 1 + random.nextInt(64));
+		}
+		for (int r = 0; r < 64; r++) g.SetWord(r, 0, 0L, 64);
+		for (int r = 0; r < 8; r++) g.Set(200, 300 + r, true);
+	}
+}
@@ -0,0 +1,18 @@
+// Copyright David Petrie 2008
+//
+// Runs the benchmarks with JMH, as "java -jar benchmarks.jar" would, but
+// writes the results as JSON (to jmh-result.json) unless told otherwise
+// with -rf, so runs from different releases can be compared.
+package bench;
+
+import java.util.*;
+
+public class BenchmarkMain
+{
+	public static void main(String[] args) throws Exception
+	{
+		List<String> options = new ArrayList<String>(Arrays.asList(args));
+		if (!options.contains("-rf")) options.addAll(0, Arrays.asList("-rf", "json"));
+		org.openjdk.jmh.Main.main(options.toArray(new String[0]));
+	}
+}
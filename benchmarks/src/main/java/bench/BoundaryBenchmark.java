@@ -0,0 +1,88 @@
+// Copyright David Petrie 2008
+//
+// Taking the boundaries a worker sends its neighbours off the edges of its
+// tile, on all eight sides: as the bits of a binary HaloFrame (what
+// Worker.GetBoundaryFrame does), and as row,col,hasLife lines for the
+// text protocol (what Worker.GetBoundaryCells does, then the link with
+// each cell). Tiles are square, with halos 1 and 4 cells deep.
+package bench;
+
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BoundaryBenchmark
+{
+	private static final String[] SIDES = { "NORTH", "NORTHEAST", "EAST", "SOUTHEAST", "SOUTH", "SOUTHWEST", "WEST", "NORTHWEST" };
+
+	@Param({ "64", "256", "1024" })
+	public int size;
+
+	@Param({ "1", "4" })
+	public int halo;
+
+	@Param({ "0.05", "0.3" })
+	public double density;
+
+	private Object tile = null;
+	private int[][] regions = new int[SIDES.length][];
+	private long[][] bits = new long[SIDES.length][];
+
+
+
+	@Setup
+	public void Setup() throws Throwable
+	{
+		tile = Game.NEW_HALO_TILE.invokeExact(size, size, halo);
+		java.util.Random random = new java.util.Random(42);
+		for (int r = 0; r < size; r++)
+		{
+			for (int c = 0; c < size; c++)
+			{
+				if (random.nextDouble() < density) Game.HALO_TILE_SET.invokeExact(tile, r, c, true);
+			}
+		}
+		for (int i = 0; i < SIDES.length; i++)
+		{
+			regions[i] = (int[])(Object)Game.HALO_TILE_REGION.invokeExact(tile, Game.Direction(SIDES[i]), false);
+			bits[i] = new long[(regions[i][2] * regions[i][3] + 63) >>> 6];
+		}
+	}
+
+
+
+	@Benchmark
+	public void BoundaryFrames(Blackhole bh) throws Throwable
+	{
+		for (int i = 0; i < SIDES.length; i++)
+		{
+			Game.HALO_TILE_GET_REGION.invokeExact(tile, (Object)regions[i], (Object)bits[i]);
+			bh.consume(bits[i]);
+		}
+	}
+
+
+
+	@Benchmark
+	public void BoundaryCells(Blackhole bh) throws Throwable
+	{
+		for (int[] region: regions)
+		{
+			for (int r = region[0]; r < region[0] + region[2]; r++)
+			{
+				for (int c = region[1]; c < region[1] + region[3]; c++)
+				{
+					boolean live = (boolean)Game.HALO_TILE_GET.invokeExact(tile, r, c);
+					Object cell = Game.NEW_CELL.invokeExact(r, c, live);
+					bh.consume((Object)Game.CELL_TO_CSV.invokeExact(cell));
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,134 @@
+// Copyright David Petrie 2008
+//
+// Reading and writing cells as text: a tile's worth of cells to and from
+// the row,col,hasLife lines the master and workers send each other (see
+// Cell), and loading a pattern file of the same cells in each of the
+// formats PatternLoader understands.
+//
+// The pattern is loaded with PatternLoader.Load, which is what
+// GameOfLifeUtils.LoadPattern does, less the line it prints every time.
+package bench;
+
+import java.io.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark
+{
+	@Param({ "64", "256" })
+	public int size;
+
+	@Param({ "0.05", "0.3" })
+	public double density;
+
+	@Param({ "xo", "cells", "rle" })
+	public String format;
+
+	private Object[] cells = null;
+	private String[] csv = null;
+	private File pattern = null;
+
+
+
+	@Setup
+	public void Setup() throws Throwable
+	{
+		boolean[][] live = new boolean[size][size];
+		java.util.Random random = new java.util.Random(42);
+		for (int r = 0; r < size; r++)
+		{
+			for (int c = 0; c < size; c++)
+				live[r][c] = random.nextDouble() < density;
+		}
+
+		cells = new Object[size * size];
+		csv = new String[size * size];
+		for (int r = 0; r < size; r++)
+		{
+			for (int c = 0; c < size; c++)
+			{
+				Object cell = Game.NEW_CELL.invokeExact(r, c, live[r][c]);
+				cells[r * size + c] = cell;
+				csv[r * size + c] = (String)(Object)Game.CELL_TO_CSV.invokeExact(cell);
+			}
+		}
+
+		pattern = File.createTempFile("pattern", "." + format);
+		pattern.deleteOnExit();
+		Writer out = new BufferedWriter(new FileWriter(pattern));
+		try {
+			WritePattern(out, live);
+		} finally {
+			out.close();
+		}
+	}
+
+
+
+	@TearDown
+	public void TearDown()
+	{
+		pattern.delete();
+	}
+
+
+
+	@Benchmark
+	public void CellToCSV(Blackhole bh) throws Throwable
+	{
+		for (Object cell: cells) bh.consume((Object)Game.CELL_TO_CSV.invokeExact(cell));
+	}
+
+
+
+	@Benchmark
+	public void CellFromCSV(Blackhole bh) throws Throwable
+	{
+		for (String line: csv) bh.consume((Object)Game.PARSE_CELL.invokeExact((Object)line));
+	}
+
+
+
+	@Benchmark
+	public Object LoadPattern() throws Throwable
+	{
+		return (Object)Game.LOAD_PATTERN.invokeExact((Object)pattern.getPath());
+	}
+
+
+
+	private void WritePattern(Writer out, boolean[][] live) throws IOException
+	{
+		if (format.equals("rle")) {
+			out.write("#C random cells\nx = " + size + ", y = " + size + ", rule = B3/S23\n");
+			for (int r = 0; r < size; r++)
+			{
+				for (int c = 0; c < size; )
+				{
+					int run = 1;
+					while (c + run < size && live[r][c + run] == live[r][c]) run++;
+					if (run > 1) out.write(Integer.toString(run));
+					out.write(live[r][c] ? 'o' : 'b');
+					c += run;
+				}
+				out.write(r == size - 1 ? "!\n" : "$\n");
+			}
+			return;
+		}
+		if (format.equals("cells")) out.write("!Name: random cells\n");
+		char on = format.equals("cells") ? 'O' : 'x';
+		char off = format.equals("cells") ? '.' : 'o';
+		for (int r = 0; r < size; r++)
+		{
+			for (int c = 0; c < size; c++) out.write(live[r][c] ? on : off);
+			out.write('\n');
+		}
+	}
+}
@@ -0,0 +1,130 @@
+// Copyright David Petrie 2008
+//
+// Calls into the game's classes for the benchmarks.
+//
+// The game is written in the default package, which classes in a named
+// package can't refer to, and JMH won't generate benchmarks in the default
+// package. So the game's methods are looked up here by name, once, as
+// method handles held in static finals, which the JIT treats as constants
+// and inlines much like a direct call. Everything the game hands back is
+// passed around as an Object.
+package bench;
+
+import java.lang.invoke.*;
+import java.lang.reflect.*;
+
+public final class Game
+{
+	public static final MethodHandle NEW_CELL_GRID = Constructor("CellGrid", int.class, int.class);
+	public static final MethodHandle CELL_GRID_SET = Method("CellGrid", "Set", int.class, int.class, boolean.class);
+	public static final MethodHandle NEXT_STATE = Method("GameOfLifeUtils", "NextState", Type("CellGrid"));
+	public static final MethodHandle COUNT_LIVE_CELLS = Method("GameOfLifeUtils", "CountLiveCells", Type("CellGrid"), int.class, int.class);
+
+	public static final MethodHandle NEW_SPARSE_GRID = Constructor("SparseGrid", int.class, int.class);
+	public static final MethodHandle SPARSE_COPY_REGION = Method("SparseGrid", "CopyRegion", Type("CellGrid"), int.class, int.class, int.class, int.class, int.class, int.class);
+	public static final MethodHandle COMPARE_CELLS = Method("GameOfLifeUtils", "CompareCells", Type("SparseGrid"), Type("SparseGrid"));
+
+	public static final MethodHandle LOAD_PATTERN = Method("PatternLoader", "Load", String.class);
+
+	public static final MethodHandle NEW_CELL = Constructor("Cell", int.class, int.class, boolean.class);
+	public static final MethodHandle PARSE_CELL = Constructor("Cell", String.class);
+	public static final MethodHandle CELL_TO_CSV = Method("Cell", "toCSV");
+
+	public static final MethodHandle NEW_HALO_TILE = Constructor("HaloTile", int.class, int.class, int.class);
+	public static final MethodHandle HALO_TILE_SET = Method("HaloTile", "Set", int.class, int.class, boolean.class);
+	public static final MethodHandle HALO_TILE_GET = Method("HaloTile", "Get", int.class, int.class);
+	public static final MethodHandle HALO_TILE_REGION = Method("HaloTile", "Region", Type("Direction"), boolean.class);
+	public static final MethodHandle HALO_TILE_GET_REGION = Method("HaloTile", "GetRegion", int[].class, long[].class);
+
+
+
+	private Game()
+	{
+	}
+
+
+
+	// One of the Direction enum's values, by name.
+	public static Object Direction(String name)
+	{
+		for (Object d: Type("Direction").getEnumConstants())
+		{
+			if (((Enum<?>)d).name().equals(name)) return d;
+		}
+		throw new IllegalArgumentException("No direction " + name);
+	}
+
+
+
+	// A rows x cols CellGrid with about "density" of its cells alive, the
+	// same cells every time for the same seed.
+	public static Object RandomCellGrid(int rows, int cols, double density, long seed) throws Throwable
+	{
+		java.util.Random random = new java.util.Random(seed);
+		Object grid = NEW_CELL_GRID.invokeExact(rows, cols);
+		for (int r = 0; r < rows; r++)
+		{
+			for (int c = 0; c < cols; c++)
+			{
+				if (random.nextDouble() < density) CELL_GRID_SET.invokeExact(grid, r, c, true);
+			}
+		}
+		return grid;
+	}
+
+
+
+	// The same cells as a SparseGrid.
+	public static Object ToSparseGrid(Object grid, int rows, int cols) throws Throwable
+	{
+		Object sparse = NEW_SPARSE_GRID.invokeExact(rows, cols);
+		SPARSE_COPY_REGION.invokeExact(sparse, grid, 0, 0, 0, 0, rows, cols);
+		return sparse;
+	}
+
+
+
+	public static Class<?> Type(String name)
+	{
+		try {
+			return Class.forName(name);
+		} catch (ClassNotFoundException e) {
+			throw new IllegalStateException("The game's classes aren't on the class path: " + name, e);
+		}
+	}
+
+
+
+	// A handle on a method (static or not) with every reference type in its
+	// signature, and the object it's called on, taken as Object.
+	private static MethodHandle Method(String type, String name, Class<?>... parameters)
+	{
+		try {
+			Method m = Type(type).getDeclaredMethod(name, parameters);
+			m.setAccessible(true);
+			return Erase(MethodHandles.lookup().unreflect(m));
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("No method " + type + "." + name, e);
+		}
+	}
+
+
+
+	private static MethodHandle Constructor(String type, Class<?>... parameters)
+	{
+		try {
+			Constructor<?> c = Type(type).getDeclaredConstructor(parameters);
+			c.setAccessible(true);
+			return Erase(MethodHandles.lookup().unreflectConstructor(c));
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("No constructor for " + type, e);
+		}
+	}
+
+
+
+	private static MethodHandle Erase(MethodHandle h)
+	{
+		return h.asType(h.type().erase());
+	}
+}
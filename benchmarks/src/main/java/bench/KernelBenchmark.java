@@ -0,0 +1,69 @@
+// Copyright David Petrie 2008
+//
+// The stepping kernels on a square tile of random cells: a whole
+// generation (GameOfLifeUtils.NextState), counting the neighbours of
+// every cell one at a time (CountLiveCells), and comparing two spaces
+// that are the same (CompareCells, which has to look at all of them).
+package bench;
+
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KernelBenchmark
+{
+	@Param({ "64", "256", "1024" })
+	public int size;
+
+	@Param({ "0.05", "0.3", "0.6" })
+	public double density;
+
+	private Object grid = null;
+	private Object sparse = null;
+	private Object sparseCopy = null;
+
+
+
+	@Setup
+	public void Setup() throws Throwable
+	{
+		grid = Game.RandomCellGrid(size, size, density, 42);
+		sparse = Game.ToSparseGrid(grid, size, size);
+		sparseCopy = Game.ToSparseGrid(grid, size, size);
+	}
+
+
+
+	@Benchmark
+	public Object NextState() throws Throwable
+	{
+		return (Object)Game.NEXT_STATE.invokeExact(grid);
+	}
+
+
+
+	@Benchmark
+	public int CountLiveCells() throws Throwable
+	{
+		int total = 0;
+		for (int r = 0; r < size; r++)
+		{
+			for (int c = 0; c < size; c++)
+				total += (int)Game.COUNT_LIVE_CELLS.invokeExact(grid, r, c);
+		}
+		return total;
+	}
+
+
+
+	@Benchmark
+	public boolean CompareCells() throws Throwable
+	{
+		return (boolean)Game.COMPARE_CELLS.invokeExact(sparse, sparseCopy);
+	}
+}